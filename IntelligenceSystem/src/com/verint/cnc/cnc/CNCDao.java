@@ -12,6 +12,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import org.json.JSONObject;
@@ -19,14 +20,22 @@ import org.json.JSONObject;
 import com.verint.exceptions.DaoException;
 import com.verint.utils.Config;
 import com.verint.utils.ErrorLogger;
+import com.verint.utils.ResourceLimits;
+import com.verint.utils.ResourceLimits.Permit;
 
 /**
  * Handles db access for CNC data
  * @author Assaf Azaria
  */
 public class CNCDao {
+	// bounds concurrent db connections
+	private static final String DB_RESOURCE = "db";
+	
 	private Logger logger = ErrorLogger.getInstance().getLogger();
 	
+	// permits of the open connections
+	private Map<Connection, Permit> permits = new ConcurrentHashMap<>();
+	
 	public CNCDao() {
 	}
 	
@@ -202,9 +211,13 @@ public class CNCDao {
 	private Connection connect(String dbName, String user, String password) throws DaoException
 	{
 		String url = "jdbc:mysql://" + Config.getDBUrl() + "/" + dbName;
+		Permit permit = ResourceLimits.getInstance().acquire(DB_RESOURCE);
 		try {
-			return DriverManager.getConnection(url, user, password);
+			Connection con = DriverManager.getConnection(url, user, password);
+			permits.put(con, permit);
+			return con;
 		} catch (SQLException e) {
+			permit.close();
 
 			logger.severe("Cannot connect to DB: " + dbName + " see log");
 			throw new DaoException(e);
@@ -218,6 +231,9 @@ public class CNCDao {
 		} catch (SQLException e) {
 			logger.info("db exception, see log. msg: " + e.getMessage());
 			throw new DaoException(e);
+		} finally {
+			Permit permit = permits.remove(con);
+			if (permit != null) permit.close();
 		}
 	}
 
@@ -30,6 +30,7 @@ import org.apache.commons.io.input.TailerListenerAdapter;
 import com.verint.cnc.main.LogFileTailer;
 import com.verint.exceptions.FileSubmittionFailedException;
 import com.verint.utils.Config;
+import com.verint.utils.DirSnapshot;
 import com.verint.utils.ErrorLogger;
 import com.verint.utils.Utils;
 
@@ -108,6 +109,10 @@ public class DDPController implements DDPRemote {
 	@SuppressWarnings("unchecked")
 	private void watchDirForNewFiles(Path dir) {
 		try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+			// the entries we know of, to recover missed events on overflow
+			DirSnapshot snapshot = new DirSnapshot(dir);
+			snapshot.init();
+			
 			// register for events on new files
 			WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE);
 			logger.info("Starting to watch on dir: " + dir);
@@ -124,31 +129,24 @@ public class DDPController implements DDPRemote {
 
 				for (WatchEvent<?> event : key.pollEvents()) {
 					// an OVERFLOW event can occur, if events are lost or
-					// discarded.
+					// discarded. Find what we missed from the snapshot
 					if (event.kind() == OVERFLOW) {
+						logger.warning("watch events overflow, reconciling " + dir);
+						try {
+							for (WatchEvent<Path> missed : snapshot.reconcile()) {
+								handleEvent(missed.kind(), missed.context());
+							}
+						} catch (IOException e) {
+							// keep watching, the next overflow tries again
+							logger.log(Level.INFO, "cannot reconcile " + dir + ": " + e.getMessage());
+						}
 						continue;
 					}
 
-					WatchEvent.Kind<?> kind = event.kind();
-
 					// The filename is the context of the event.
 					Path newPath = ((WatchEvent<Path>) event).context();
-					logger.info("Event kind: " + event.kind().name() + " file: " + newPath);
-
-					if (kind == ENTRY_CREATE) {
-						SubmittedFile file = new SubmittedFile(newPath);
-						file.setState(State.CREATED);
-						createdFilesMap.put(newPath.getFileName().toString(), 
-								file);
-					}
-					else if (kind == ENTRY_DELETE)
-					{
-						// Intermediate stage, before it is transferred.
-						SubmittedFile file = createdFilesMap.get(newPath.getFileName().toString());
-						if (file != null){
-							file.setState(State.DELETED);
-							file.setTimeStamp(Instant.now());
-						}
+					if (snapshot.apply(event.kind(), newPath)) {
+						handleEvent(event.kind(), newPath);
 					}
 				}
 
@@ -168,6 +166,27 @@ public class DDPController implements DDPRemote {
 		// finished - either by exception, or by key reset.
 	}
 
+	private void handleEvent(WatchEvent.Kind<?> kind, Path newPath)
+	{
+		logger.info("Event kind: " + kind.name() + " file: " + newPath);
+
+		if (kind == ENTRY_CREATE) {
+			SubmittedFile file = new SubmittedFile(newPath);
+			file.setState(State.CREATED);
+			createdFilesMap.put(newPath.getFileName().toString(), 
+					file);
+		}
+		else if (kind == ENTRY_DELETE)
+		{
+			// Intermediate stage, before it is transferred.
+			SubmittedFile file = createdFilesMap.get(newPath.getFileName().toString());
+			if (file != null){
+				file.setState(State.DELETED);
+				file.setTimeStamp(Instant.now());
+			}
+		}
+	}
+
 	/**
 	 * Remote method - check whether the given file was transferred
 	 * 
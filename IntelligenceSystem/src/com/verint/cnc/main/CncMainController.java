@@ -13,7 +13,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.logging.Level;
@@ -34,6 +33,8 @@ import com.verint.main.EngineController;
 import com.verint.main.SampleFile;
 import com.verint.utils.Config;
 import com.verint.utils.ErrorLogger;
+import com.verint.utils.ResourceLimits;
+import com.verint.utils.ThreadPools;
 import com.verint.utils.Utils;
 
 /** 
@@ -45,13 +46,16 @@ import com.verint.utils.Utils;
  * @author Assaf Azaria
  */
 public class CncMainController implements EngineController {
+	// bounds concurrent rmi calls
+	private static final String RMI_RESOURCE = "cnc.rmi";
+	
 	private Logger logger = ErrorLogger.getInstance().getLogger();
 	private SCPUploader uploader;
 	private ControllerData data; 
 	
 	private List<CncMachine> cncMachines;
 	private DDPRemote ddpStub;
-	private ExecutorService executor = Executors.newCachedThreadPool();
+	private ExecutorService executor = ThreadPools.newTaskExecutor("cnc");
 
 	public CncMainController() throws ControllerLoadFailure{
 		data = createControllerData();
@@ -100,7 +104,8 @@ public class CncMainController implements EngineController {
 		// wait for file to be transferred to cnc machine
 		logger.info("CNC: Waiting for ddp to transfer file");
 		try {
-			boolean response = ddpStub.isFileTransferred(file.getFileName().toString());
+			boolean response = ResourceLimits.getInstance().with(RMI_RESOURCE,
+					() -> ddpStub.isFileTransferred(file.getFileName().toString()));
 			if (!response) {
 				String msg = "CNC: file was not transferred from ddp. Check ddp machine";
 				logger.severe(msg);
@@ -161,7 +166,8 @@ public class CncMainController implements EngineController {
 		final Path file = sample.getPath();
 		logger.info("CNC: Getting data from cnc machine " + cncMachine.getHostName());
 		try {
-			CNCData cncData = cncMachine.getRemoteStub().getCNCData(file.getFileName().toString());
+			CNCData cncData = ResourceLimits.getInstance().with(RMI_RESOURCE,
+					() -> cncMachine.getRemoteStub().getCNCData(file.getFileName().toString()));
 			cncData.setCncMachine(cncMachine);
 
 			// Write data to ES.
@@ -6,34 +6,50 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.file.Files;
-import java.time.Duration;
+import java.nio.file.Paths;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringJoiner;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.DocWriteRequest;
 import org.elasticsearch.action.DocWriteRequest.OpType;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.bulk.byscroll.BulkByScrollResponse;
-import org.elasticsearch.action.index.IndexResponse;
-import org.elasticsearch.client.Requests;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.transport.TransportClient;
-import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.reindex.ReindexAction;
 import org.elasticsearch.index.reindex.ReindexRequestBuilder;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.transport.client.PreBuiltTransportClient;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import com.verint.cnc.cnc.CNCData;
@@ -41,6 +57,7 @@ import com.verint.cnc.cnc.DSRData;
 import com.verint.main.SampleFile;
 import com.verint.utils.Config;
 import com.verint.utils.ErrorLogger;
+import com.verint.utils.Metrics;
 
 /**
  * handler for Elastic Search
@@ -57,15 +74,36 @@ public class ESHandler {
 		private static ESHandler instance = new ESHandler();
 	} 
 	
+	// payload report arrays that may be indexed as docs of their own
+	private static final String[][] PAYLOAD_SPLIT_ARRAYS = {
+			{"analysis", "runtime", "targets", "target"},
+			{"analysis", "runtime", "network", "hosts", "host"},
+			{"analysis", "final", "signatures", "category"}};
+	
 	private TransportClient client;
 	private Logger logger = ErrorLogger.getInstance().getLogger();
 	
-	private ExecutorService executor = Executors.newSingleThreadExecutor();
+	// all documents are written through here, in bulks
+	private BulkProcessor bulk;
+	private AtomicInteger bulksInFlight = new AtomicInteger();
+	
+	// documents ES failed to index. Null if the spool cannot be opened.
+	private RetrySpool spool;
+	
+	private IndexWatcher indexWatcher;
 	
+	private ReindexManager reindexer;
 	
 	private ESHandler()
 	{
 		initESClient();
+		indexWatcher = new IndexWatcher(client, 
+				TimeUnit.SECONDS.toMillis(Config.getESIndexWatchSecs()));
+		reindexer = new ReindexManager(client, Config.getESReindexSlices(), 
+				TimeUnit.SECONDS.toMillis(Config.getESReindexCheckSecs()),
+				TimeUnit.MINUTES.toMillis(Config.getESReindexSettleMaxMinutes()));
+		initBulkProcessor();
+		initRetrySpool();
 	}
 	
 	private final void initESClient(){
@@ -82,49 +120,108 @@ public class ESHandler {
 		}
 	}
 
+	// Bulks are sent by count, size or age, whichever comes first. Adding a
+	// document blocks while the max concurrent bulks are in flight.
+	private final void initBulkProcessor()
+	{
+		bulk = BulkProcessor.builder(client, new BulkListener())
+				.setBulkActions(Config.getESBulkActions())
+				.setBulkSize(new ByteSizeValue(Config.getESBulkSizeMb(), ByteSizeUnit.MB))
+				.setFlushInterval(TimeValue.timeValueMillis(Config.getESBulkFlushMillis()))
+				.setConcurrentRequests(Config.getESBulkConcurrent())
+				// retries bulks rejected by a busy cluster
+				.setBackoffPolicy(BackoffPolicy.exponentialBackoff())
+				.build();
+		Metrics.getInstance().registerGauge("es.bulks.inflight", () -> bulksInFlight.get());
+	}
+	
+	private final void initRetrySpool()
+	{
+		try {
+			spool = new RetrySpool(Paths.get(Config.getESRetryPath()), client, 
+					TimeUnit.SECONDS.toMillis(Config.getESRetryMaxBackoffSecs()));
+			spool.start();
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "ESHandler: cannot open the retry spool. Failed " +
+					"documents will be lost", e);
+		}
+	}
+
 	public static ESHandler getInstance() {
 		return Holder.instance;
 	}
 	
+	// Send the pending documents, and wait for the bulks in flight.
+	public void shutdown()
+	{
+		try {
+			if (!bulk.awaitClose(1, TimeUnit.MINUTES)) {
+				logger.info("ESHandler: bulks still in flight on shutdown");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (spool != null)
+			spool.shutdown();
+		indexWatcher.shutdown();
+		reindexer.shutdown();
+	}
+	
+	// Documents wait behind the spooled ones while it drains - so while ES 
+	// is down they go straight to disk, and writers are never held up.
+	private void index(IndexRequest request)
+	{
+		if (spool != null && !spool.isEmpty()) {
+			spool.add(request);
+		} else {
+			bulk.add(request);
+		}
+	}
+	
 	//
 	// Generic functions
 	//
 	
-	// poll ES for the given index, until timeout.  
-	private boolean notifyWhenIndexIsCreated(String indexName, int timeoutMinutes)
+	// Notify the listener when the given index is created, or on timeout.
+	public void notifyWhenIndexIsCreated(String indexName, int timeoutMinutes, 
+			IndexCreatedListener listener)
+	{
+		indexWatcher.watch(indexName, TimeUnit.MINUTES.toMillis(timeoutMinutes), listener);
+	}
+	
+	// wait for the given index, until timeout.  
+	private boolean waitUntilIndexIsCreated(String indexName, int timeoutMinutes)
 	{
-		logger.fine("expected index name: " + indexName);
-		Instant start = Instant.now();
-	    while(!checkIfIndexExists(indexName))
-	    {
-	    	long timePassed = Duration.between(start, Instant.now()).toMinutes();
-	    	
-	    	if (timePassed >= timeoutMinutes){
-	    		logger.info("ES index was not created. Reached timeout");
-	    		return false;
-	    	}
-	    	
-	    	try {
-	    		// Repeat check every 15 secs
-				TimeUnit.SECONDS.sleep(15);
-			} catch (InterruptedException e) {
-				logger.finer("sleep interrupt: " + e.getMessage());
+		CountDownLatch done = new CountDownLatch(1);
+		AtomicBoolean created = new AtomicBoolean();
+		notifyWhenIndexIsCreated(indexName, timeoutMinutes, new IndexCreatedListener() {
+			@Override
+			public void indexCreated(String index) {
+				created.set(true);
+				done.countDown();
+			}
+			
+			@Override
+			public void timeout() {
+				done.countDown();
 			}
-	    }
-	    logger.info("ES index created: " + indexName);
-		return true;
+		});
+		
+		// the watcher times out first. Don't rely on it to return
+		try {
+			if (!done.await(timeoutMinutes + 1, TimeUnit.MINUTES)) {
+				logger.warning("ES gave up waiting for index: " + indexName);
+			}
+		} catch (InterruptedException e) {
+			logger.finer("wait interrupt: " + e.getMessage());
+			Thread.currentThread().interrupt();
+		}
+		return created.get();
 	}
 	
 	// Check if the given index exists in ES
-	private boolean checkIfIndexExists(String index) {
-		IndexMetaData indexMetaData = client.admin().cluster()
-	            .state(Requests.clusterStateRequest())
-	            .actionGet()
-	            .getState()
-	            .getMetaData()
-	            .index(index);
-
-	    return (indexMetaData != null);
+	protected boolean checkIfIndexExists(String index) {
+		return client.admin().indices().prepareExists(index).get().isExists();
 	}
 	
 	// index the base sample document for the given file
@@ -145,24 +242,19 @@ public class ESHandler {
 				        .field("context_id", file.getContext().getContextId())
 				        .field("search string", file.getSearchString())
 				        .field("description", file.getContext().getDescription())
-				        .field("running_step", file.getContext().getRunningStep())
-				    .endObject();
+				        .field("running_step", file.getContext().getRunningStep());
+			
+			// a known sample - link to the docs with the results
+			Set<String> from = new TreeSet<>(file.getResultsFrom().values());
+			if (!from.isEmpty()) 
+				builder.array("results_from", from.toArray(new String[from.size()]));
+			builder.endObject();
 		
-			System.out.println("INDEX: " + Config.getESIndexName());
 			// use file hash as the document id
-			IndexResponse response = client.prepareIndex(Config.getESIndexName(), 
-					"sample", file.getEsId())
-			        .setSource(builder)
-			        .get();
-			
-			logger.info("ESHandler: Sample indexed: type: " + response.getType() +
-					"id = " + response.getId() + 
-					"version= " + response.getVersion() +
-					"status= " + response.status());
+			index(new IndexRequest(Config.getESIndexName(), "sample", file.getEsId())
+					.source(builder));
 		} catch (IOException e) {
 			logger.log(Level.SEVERE, "ESHandler: Problem creating json for sample");
-		}catch(ElasticsearchException e){
-			logger.log(Level.SEVERE, e.getMessage(), e);
 		}
 	}
 	
@@ -228,19 +320,10 @@ public class ESHandler {
 						
 						.endObject();
 				
-				// ES client is TS (stateless)
-				IndexResponse response = client.prepareIndex(Config.getESIndexName(), 
-						"cnc_data", "" + dsr.getRowId()).setSource(builder)
-						.setParent(file.getEsId()).get();
-	
-//				logger.info("indexed: type: " + response.getType() + 
-//						" id = " + response.getId() + " version= " + 
-//						response.getVersion() + " status= " + 
-//						response.status());
+				index(new IndexRequest(Config.getESIndexName(), "cnc_data", "" + dsr.getRowId())
+						.source(builder).parent(file.getEsId()));
 			} catch (IOException e) {
 				logger.log(Level.SEVERE, "ESHandler: Problem creating json for cnc data");
-			}catch(ElasticsearchException e){
-				logger.log(Level.SEVERE, "ES Failed to index cnc doc", e);
 			}
 		}
 	}
@@ -251,15 +334,70 @@ public class ESHandler {
 	public void indexPayloadReport(SampleFile sample, JSONObject report)
 	{
 		logger.info("ESHandler: Indexing payload response on " + sample.getPath());
+		String reportId = sample.getEsId() + "_payload";
 		
-		// ES client is TS (stateless)
-		try{
-			IndexResponse response = client.prepareIndex(Config.getESIndexName(), 
-					"sandbox_data").setSource(report.toString(), XContentType.JSON)
-					.setParent(sample.getEsId()).get();
-		}catch(ElasticsearchException e){
-			logger.log(Level.SEVERE, "ES Failed to index payload report", e);
+		// large arrays go to docs of their own. The report itself is not changed.
+		int minItems = Config.getESPayloadSplitMinItems();
+		Map<String[], JSONArray> split = new LinkedHashMap<>();
+		Set<Object> skip = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (String[] path : PAYLOAD_SPLIT_ARRAYS) {
+			JSONArray arr = arrayAt(report, path);
+			if (minItems > 0 && arr != null && arr.length() >= minItems) {
+				split.put(path, arr);
+				skip.add(arr);
+			}
+		}
+		
+		// the json is written straight into the request, not to a string first
+		try {
+			XContentBuilder builder = jsonBuilder().startObject();
+			JsonXContent.writeFields(builder, report, skip);
+			builder.field("report_id", reportId);
+			if (!split.isEmpty()) {
+				builder.field("report_parts", split.values().stream().mapToInt(a -> a.length()).sum());
+			}
+			builder.endObject();
+			index(new IndexRequest(Config.getESIndexName(), "sandbox_data", reportId)
+					.source(builder).parent(sample.getEsId()));
+			
+			for (Map.Entry<String[], JSONArray> e : split.entrySet()) {
+				indexPayloadParts(sample, reportId, e.getKey(), e.getValue());
+			}
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "ESHandler: Problem creating json for payload report");
+		}
+	}
+	
+	// A doc per array item. The item is kept on its path in the report, so the
+	// parts are mapped like the report.
+	private void indexPayloadParts(SampleFile sample, String reportId, String[] path, 
+			JSONArray arr) throws IOException
+	{
+		String name = path[path.length - 1];
+		logger.fine("ESHandler: Indexing " + arr.length() + " payload " + name + " docs");
+		
+		for (int i = 0; i < arr.length(); i++) {
+			XContentBuilder builder = jsonBuilder().startObject()
+					.field("report_id", reportId);
+			for (int k = 0; k < path.length - 1; k++) builder.startObject(path[k]);
+			builder.field(name);
+			JsonXContent.writeValue(builder, arr.get(i));
+			for (int k = 0; k < path.length - 1; k++) builder.endObject();
+			builder.endObject();
+			
+			index(new IndexRequest(Config.getESIndexName(), "sandbox_data", reportId + "_" + name + "_" + i)
+					.source(builder).parent(sample.getEsId()));
+		}
+	}
+	
+	// The array on the given path, if there is one
+	private static JSONArray arrayAt(JSONObject json, String[] path)
+	{
+		JSONObject temp = json;
+		for (int i = 0; i < path.length - 1 && temp != null; i++) {
+			temp = temp.optJSONObject(path[i]);
 		}
+		return (temp == null) ? null : temp.optJSONArray(path[path.length - 1]);
 	}
 	
 	//
@@ -271,7 +409,7 @@ public class ESHandler {
 	public boolean notifyWhenEdrIndexIsCreated(SampleFile file, int timeoutMinutes)
 	{
 		// use md5 because ES index name size limit
-		return notifyWhenIndexIsCreated(buildEdrIndexName(file.getMd5Hash()), 
+		return waitUntilIndexIsCreated(buildEdrIndexName(file.getMd5Hash()), 
 				timeoutMinutes);
 	}
 	
@@ -290,19 +428,9 @@ public class ESHandler {
 	{
 		String edrIndexName = buildEdrIndexName(file.getMd5Hash());
 		
-		executor.submit(() -> {
-			// Wait for edr server bulk to finish
-			try{
-				TimeUnit.SECONDS.sleep(70);
-			}catch(InterruptedException e)
-			{
-				logger.finer("ESHandler: sleep interrupt: " + e.getMessage());
-			}
-			
-			reindex(edrIndexName, createReindexScript(file.getEsId()));
-			
-			deleteIndex(edrIndexName);
-		});
+		// once the edr server bulks settle. Runs in the background.
+		reindexer.reindexAndDelete(edrIndexName, Config.getESIndexName(), 
+				createReindexScript(file.getEsId()));
 	}
 	
 	// Creates a script to tune the reindex process
@@ -317,5 +445,66 @@ public class ESHandler {
 		return new Script(builder.toString());
 	}
 	
-	
+	/**
+	 * Reports the outcome of bulks. Documents are written asynchronously, so
+	 * this is where failed documents are seen - and spooled, if ES may take
+	 * them later.
+	 */
+	private class BulkListener implements BulkProcessor.Listener
+	{
+		@Override
+		public void beforeBulk(long executionId, BulkRequest request)
+		{
+			bulksInFlight.incrementAndGet();
+		}
+
+		@Override
+		public void afterBulk(long executionId, BulkRequest request, BulkResponse response)
+		{
+			bulksInFlight.decrementAndGet();
+			Metrics metrics = Metrics.getInstance();
+			metrics.increment("es.bulks");
+			
+			int failed = 0;
+			List<IndexRequest> retry = new ArrayList<>();
+			for (BulkItemResponse item : response.getItems()) {
+				if (!item.isFailed()) continue;
+				failed++;
+				if (RetrySpool.isRetryable(item.getFailure().getStatus())) {
+					retry.add((IndexRequest)request.requests().get(item.getItemId()));
+				} else {
+					logger.warning("ESHandler: failed to index " + item.getType() + " " + 
+							item.getId() + ": " + item.getFailureMessage());
+				}
+			}
+			spoolAll(retry);
+			metrics.add("es.docs.indexed", response.getItems().length - failed);
+			metrics.add("es.docs.failed", failed);
+			logger.fine("ESHandler: bulk " + executionId + ": " + request.numberOfActions() + 
+					" docs, " + failed + " failed, in " + response.getTook());
+		}
+
+		@Override
+		public void afterBulk(long executionId, BulkRequest request, Throwable failure)
+		{
+			bulksInFlight.decrementAndGet();
+			Metrics.getInstance().add("es.docs.failed", request.numberOfActions());
+			logger.log(Level.WARNING, "ESHandler: bulk " + executionId + " of " + 
+					request.numberOfActions() + " docs failed: " + failure.getMessage());
+			
+			List<IndexRequest> retry = new ArrayList<>();
+			for (DocWriteRequest<?> r : request.requests()) retry.add((IndexRequest)r);
+			spoolAll(retry);
+		}
+		
+		private void spoolAll(List<IndexRequest> requests)
+		{
+			if (requests.isEmpty()) return;
+			if (spool != null) {
+				spool.addAll(requests);
+			} else {
+				logger.severe("ESHandler: lost " + requests.size() + " documents");
+			}
+		}
+	}
 }
@@ -0,0 +1,159 @@
+package com.verint.es;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.MetaData;
+
+import com.verint.utils.ErrorLogger;
+import com.verint.utils.Metrics;
+import com.verint.utils.Utils;
+
+/**
+ * Waits for indices to be created, for any number of waiters, on a single
+ * poll loop.
+ *
+ * Each poll is one cluster state request filtered to the metadata of the
+ * awaited indices only - so its size depends on the waiters, not on the
+ * number of indices on the cluster. Nothing is sent while no one waits.
+ */
+public class IndexWatcher
+{
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private final Client client;
+
+	// index name to its waiters
+	private Map<String, List<Waiter>> waiters = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "es-index-watcher");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * @param client the cluster to poll
+	 * @param pollMillis interval between polls
+	 */
+	public IndexWatcher(Client client, long pollMillis)
+	{
+		this.client = client;
+		poller.scheduleWithFixedDelay(() -> poll(), pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+		Metrics.getInstance().registerGauge("es.index.waiters", () -> waiters.size());
+	}
+
+	/**
+	 * Notify the listener when the index is created, or when the timeout
+	 * passes. The listener is called once, on the watcher thread.
+	 */
+	public void watch(String index, long timeoutMillis, IndexCreatedListener listener)
+	{
+		logger.fine("IndexWatcher: waiting for index: " + index);
+		Waiter waiter = new Waiter(listener, System.currentTimeMillis() + timeoutMillis);
+		// added under the map lock, so an expiring poll never drops it
+		waiters.compute(index, (i, list) -> {
+			List<Waiter> l = (list != null) ? list : new CopyOnWriteArrayList<>();
+			l.add(waiter);
+			return l;
+		});
+	}
+
+	/**
+	 * Stop polling. Remaining waiters time out.
+	 */
+	public void shutdown()
+	{
+		Utils.shutdownExecutor(poller, 5);
+		waiters.values().forEach(list -> list.forEach(w -> callListener(w, null)));
+		waiters.clear();
+	}
+
+	private void poll()
+	{
+		if (waiters.isEmpty()) return;
+
+		List<String> indices = new ArrayList<>(waiters.keySet());
+		try {
+			MetaData metaData = client.admin().cluster().prepareState()
+					.clear()
+					.setMetaData(true)
+					.setIndices(indices.toArray(new String[indices.size()]))
+					.get()
+					.getState()
+					.getMetaData();
+
+			for (String index : indices) {
+				if (metaData.hasIndex(index)) created(index);
+			}
+		} catch (ElasticsearchException e) {
+			// keep waiting - the cluster may be back before the timeouts
+			logger.log(Level.FINE, "IndexWatcher: poll failed: " + e.getMessage());
+		} catch (RuntimeException e) {
+			logger.log(Level.INFO, "IndexWatcher: poll failed", e);
+		}
+
+		expire(System.currentTimeMillis());
+	}
+
+	private void created(String index)
+	{
+		logger.info("ES index created: " + index);
+		List<Waiter> list = waiters.remove(index);
+		if (list != null) list.forEach(w -> callListener(w, index));
+	}
+
+	private void expire(long now)
+	{
+		for (Map.Entry<String, List<Waiter>> e : waiters.entrySet()) {
+			List<Waiter> list = e.getValue();
+			for (Iterator<Waiter> it = list.iterator(); it.hasNext();) {
+				Waiter w = it.next();
+				if (w.deadline <= now) {
+					logger.info("ES index was not created: " + e.getKey() + ". Reached timeout");
+					list.remove(w);
+					callListener(w, null);
+				}
+			}
+			waiters.computeIfPresent(e.getKey(), (k, l) -> l.isEmpty() ? null : l);
+		}
+	}
+
+	// Call the listener, with the created index or null on timeout. A listener 
+	// that throws must not stop the poll loop, or the other waiters
+	private void callListener(Waiter w, String index)
+	{
+		try {
+			if (index != null) {
+				w.listener.indexCreated(index);
+			} else {
+				w.listener.timeout();
+			}
+		} catch (RuntimeException e) {
+			logger.log(Level.SEVERE, "IndexWatcher: listener failed", e);
+		}
+	}
+
+	private static class Waiter
+	{
+		final IndexCreatedListener listener;
+		final long deadline;
+
+		Waiter(IndexCreatedListener listener, long deadline)
+		{
+			this.listener = listener;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.verint.es;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Writes org.json values into an XContentBuilder - straight into the
+ * request body, without a json string of the whole value first.
+ */
+final class JsonXContent
+{
+	private JsonXContent()
+	{
+	}
+
+	/**
+	 * Write an object, leaving out the given values
+	 *
+	 * @param skip values (arrays or objects, by identity) to leave out,
+	 *  with their keys
+	 */
+	static void writeObject(XContentBuilder builder, JSONObject obj, Set<Object> skip)
+			throws IOException
+	{
+		builder.startObject();
+		writeFields(builder, obj, skip);
+		builder.endObject();
+	}
+
+	/**
+	 * Write the fields of an object into an object already started
+	 */
+	static void writeFields(XContentBuilder builder, JSONObject obj, Set<Object> skip)
+			throws IOException
+	{
+		for (String key : obj.keySet()) {
+			Object value = obj.opt(key);
+			if (skip.contains(value)) continue;
+
+			builder.field(key);
+			writeValue(builder, value, skip);
+		}
+	}
+
+	static void writeValue(XContentBuilder builder, Object value) throws IOException
+	{
+		writeValue(builder, value, Collections.emptySet());
+	}
+
+	private static void writeValue(XContentBuilder builder, Object value, Set<Object> skip)
+			throws IOException
+	{
+		if (value instanceof JSONObject) {
+			writeObject(builder, (JSONObject)value, skip);
+		} else if (value instanceof JSONArray) {
+			builder.startArray();
+			for (Object item : (JSONArray)value) writeValue(builder, item, skip);
+			builder.endArray();
+		} else if (value == null || JSONObject.NULL.equals(value)) {
+			builder.nullValue();
+		} else if (value instanceof Number && !(value instanceof Integer || value instanceof Long ||
+				value instanceof Double || value instanceof Float)) {
+			builder.value(((Number)value).doubleValue());
+		} else if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+			builder.value(value);
+		} else {
+			builder.value(value.toString());
+		}
+	}
+}
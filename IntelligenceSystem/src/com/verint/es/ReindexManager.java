@@ -0,0 +1,302 @@
+package com.verint.es;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest.OpType;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.bulk.byscroll.BulkByScrollResponse;
+import org.elasticsearch.action.bulk.byscroll.BulkByScrollTask;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.reindex.ReindexAction;
+import org.elasticsearch.index.reindex.ReindexRequestBuilder;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.tasks.TaskInfo;
+
+import com.verint.utils.ErrorLogger;
+import com.verint.utils.Metrics;
+import com.verint.utils.Utils;
+
+/**
+ * Copies indices written by others (the edr server) into ours, and deletes
+ * them once copied.
+ *
+ * A source index is copied only after its writes settled - its doc count
+ * did not change between two checks, after a refresh. The copy is a sliced
+ * reindex, running on the cluster while its progress is followed through
+ * the tasks API. The source is deleted only if all its docs were copied.
+ *
+ * A source still changing after the max settle time is copied anyway, but
+ * deleted only if it is counted again after the copy and no docs were
+ * added meanwhile. Otherwise it gets another pass. A source that stayed
+ * empty is left as is.
+ *
+ * No thread waits for a reindex: each is a chain of scheduled checks and
+ * callbacks, so any number of them run at once. All calls to the cluster
+ * are async - the scheduler thread only times the checks, and is never
+ * held by a slow cluster.
+ */
+public class ReindexManager
+{
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private final Client client;
+	private final int slices;
+	private final long checkMillis;
+	private final long maxSettleMillis;
+
+	// source index to its reindex
+	private Map<String, Job> running = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "es-reindex");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * @param client the cluster
+	 * @param slices parallel slices of each reindex
+	 * @param checkMillis interval between doc count checks and progress reports
+	 * @param maxSettleMillis reindex anyway after waiting this long for writes to settle
+	 */
+	public ReindexManager(Client client, int slices, long checkMillis, long maxSettleMillis)
+	{
+		this.client = client;
+		this.slices = slices;
+		this.checkMillis = checkMillis;
+		this.maxSettleMillis = maxSettleMillis;
+
+		Metrics.getInstance().registerGauge("es.reindex.running", () -> running.size());
+	}
+
+	/**
+	 * Copy the source index into the dest index once its writes settle,
+	 * then delete it. A source already being copied is ignored.
+	 */
+	public void reindexAndDelete(String srcIndex, String destIndex, Script script)
+	{
+		Job job = new Job(srcIndex, destIndex, script);
+		if (running.putIfAbsent(srcIndex, job) != null) {
+			logger.fine("ReindexManager: already reindexing " + srcIndex);
+			return;
+		}
+		logger.info("ReindexManager: waiting for writes to " + srcIndex + " to settle");
+		schedule(() -> settle(job));
+	}
+
+	public void shutdown()
+	{
+		Utils.shutdownExecutor(scheduler, 5);
+		if (!running.isEmpty()) {
+			logger.info("ReindexManager: left unfinished: " + running.keySet());
+		}
+	}
+
+	// Reindex once the doc count is stable: refresh, then count
+	private void settle(Job job)
+	{
+		client.admin().indices().prepareRefresh(job.src).execute(ActionListener.wrap(
+				refreshed -> client.prepareSearch(job.src).setSize(0).execute(ActionListener.wrap(
+						response -> counted(job, response.getHits().getTotalHits()),
+						e -> countFailed(job, e))),
+				e -> countFailed(job, e)));
+	}
+
+	private void counted(Job job, long count)
+	{
+		boolean stable = (count > 0 && count == job.count);
+		boolean waitedEnough = System.currentTimeMillis() - job.start >= maxSettleMillis;
+		job.count = count;
+		if (stable) {
+			start(job);
+		} else if (waitedEnough && count == 0) {
+			running.remove(job.src);
+			logger.warning("ReindexManager: " + job.src + " has no docs, left as is");
+		} else if (waitedEnough) {
+			logger.info("ReindexManager: " + job.src + " still changing, reindexing anyway");
+			job.forced = true;
+			start(job);
+		} else {
+			schedule(() -> settle(job));
+		}
+	}
+
+	private void countFailed(Job job, Exception e)
+	{
+		logger.fine("ReindexManager: cannot count " + job.src + ": " + e.getMessage());
+		schedule(() -> settle(job));
+	}
+
+	private void start(Job job)
+	{
+		logger.info("ReindexManager: reindexing " + job.count + " docs from " + job.src +
+				" in " + slices + " slices");
+
+		ReindexRequestBuilder builder = ReindexAction.INSTANCE.newRequestBuilder(client)
+				.source(job.src).destination(job.dest);
+
+		// optype create - we expect only new documents and no updates
+		builder.destination().setOpType(OpType.CREATE);
+		builder.script(job.script);
+		builder.setSlices(slices);
+
+		builder.execute(new ActionListener<BulkByScrollResponse>() {
+			@Override
+			public void onResponse(BulkByScrollResponse response)
+			{
+				job.done = true;
+				verifyAndDelete(job, response);
+			}
+
+			@Override
+			public void onFailure(Exception e)
+			{
+				job.done = true;
+				running.remove(job.src);
+				Metrics.getInstance().increment("es.reindex.failed");
+				logger.log(Level.SEVERE, "ES Failed to reindex " + job.src + ". Index kept", e);
+			}
+		});
+		schedule(() -> reportProgress(job));
+	}
+
+	// Log the progress of the reindex task, until it completes
+	private void reportProgress(Job job)
+	{
+		if (job.done) return;
+		client.admin().cluster().prepareListTasks().setActions(ReindexAction.NAME).setDetailed(true)
+				.execute(ActionListener.wrap(response -> {
+					for (TaskInfo task : response.getTasks()) logProgress(job, task);
+					schedule(() -> reportProgress(job));
+				}, e -> {
+					logger.fine("ReindexManager: cannot list tasks: " + e.getMessage());
+					schedule(() -> reportProgress(job));
+				}));
+	}
+
+	private void logProgress(Job job, TaskInfo task)
+	{
+		// the parent task of the slices holds their total
+		if (task.getParentTaskId().isSet() || task.getDescription() == null ||
+				!task.getDescription().contains("[" + job.src + "]")) return;
+
+		if (task.getStatus() instanceof BulkByScrollTask.Status) {
+			BulkByScrollTask.Status status = (BulkByScrollTask.Status)task.getStatus();
+			logger.info("ReindexManager: " + job.src + ": " + status.getCreated() + "/" +
+					status.getTotal() + " docs copied, task " + task.getTaskId());
+		}
+	}
+
+	private void verifyAndDelete(Job job, BulkByScrollResponse response)
+	{
+		// docs copied on an earlier pass conflict, and are in the dest already
+		long copied = response.getCreated() + response.getVersionConflicts();
+		boolean complete = response.getBulkFailures().isEmpty() &&
+				response.getSearchFailures().isEmpty() && !response.isTimedOut() &&
+				response.getReasonCancelled() == null && copied >= job.count;
+		logger.info("ReindexManager: reindexed " + job.src + ": " + response.getCreated() +
+				" created of " + job.count + ", in " + response.getTook());
+
+		if (!complete) {
+			running.remove(job.src);
+			Metrics.getInstance().increment("es.reindex.failed");
+			logger.severe("ReindexManager: reindex of " + job.src + " incomplete, index kept. " +
+					response.getBulkFailures().size() + " bulk failures, " +
+					response.getSearchFailures().size() + " search failures");
+			return;
+		}
+
+		if (job.forced) {
+			recount(job, copied);
+		} else {
+			delete(job);
+		}
+	}
+
+	// The source was still changing when copied: docs written after the copy
+	// started are not in it. Delete it only if there are none.
+	private void recount(Job job, long copied)
+	{
+		client.admin().indices().prepareRefresh(job.src).execute(ActionListener.wrap(
+				refreshed -> client.prepareSearch(job.src).setSize(0).execute(ActionListener.wrap(
+						response -> recounted(job, copied, response.getHits().getTotalHits()),
+						e -> recountFailed(job, e))),
+				e -> recountFailed(job, e)));
+	}
+
+	private void recounted(Job job, long copied, long count)
+	{
+		if (count <= copied) {
+			delete(job);
+			return;
+		}
+
+		logger.info("ReindexManager: " + (count - copied) + " docs added to " + job.src +
+				" while reindexing, another pass");
+		Metrics.getInstance().increment("es.reindex.passes");
+		job.nextPass(count);
+		schedule(() -> settle(job));
+	}
+
+	private void recountFailed(Job job, Exception e)
+	{
+		running.remove(job.src);
+		Metrics.getInstance().increment("es.reindex.failed");
+		logger.log(Level.SEVERE, "ReindexManager: cannot count " + job.src + " after reindex. Index kept", e);
+	}
+
+	private void delete(Job job)
+	{
+		running.remove(job.src);
+		Metrics.getInstance().increment("es.reindex.done");
+		logger.info("ReindexManager: deleting: " + job.src);
+		client.admin().indices().delete(new DeleteIndexRequest(job.src), ActionListener.wrap(
+				deleted -> logger.fine("ReindexManager: Index deleted? " + deleted.isAcknowledged()),
+				e -> logger.log(Level.INFO, "ReindexManager: cannot delete " + job.src, e)));
+	}
+
+	private void schedule(Runnable check)
+	{
+		if (!scheduler.isShutdown()) {
+			scheduler.schedule(check, checkMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static class Job
+	{
+		final String src;
+		final String dest;
+		final Script script;
+		volatile long start = System.currentTimeMillis();
+
+		// last doc count of the source. Used by one check at a time
+		volatile long count = -1;
+		volatile boolean done = false;
+
+		// reindexed before its writes settled
+		volatile boolean forced = false;
+
+		Job(String src, String dest, Script script)
+		{
+			this.src = src;
+			this.dest = dest;
+			this.script = script;
+		}
+
+		// Settle again from the given count, and copy what was added
+		void nextPass(long count)
+		{
+			this.count = count;
+			start = System.currentTimeMillis();
+			done = false;
+			forced = false;
+		}
+	}
+}
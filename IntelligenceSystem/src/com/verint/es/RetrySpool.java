@@ -0,0 +1,251 @@
+package com.verint.es;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.json.JSONObject;
+
+import com.verint.utils.ErrorLogger;
+import com.verint.utils.Metrics;
+import com.verint.utils.SegmentLog;
+import com.verint.utils.Utils;
+
+/**
+ * Index requests that ES failed or rejected, kept on disk until the
+ * cluster takes them - so analysis results survive an ES outage, and a
+ * restart during one.
+ *
+ * A background replayer sends the spooled requests in bulks, oldest first.
+ * While the cluster is down it backs off, doubling the delay between
+ * attempts up to a max.
+ */
+public class RetrySpool
+{
+	private static final String PREFIX = "es";
+	private static final int ENTRIES_PER_SEGMENT = 1000;
+	private static final int REPLAY_BATCH = 500;
+	private static final long MIN_BACKOFF_MILLIS = 1000;
+	private static final long REPLAY_TIMEOUT_SECS = 60;
+	private static final long HEALTH_TIMEOUT_SECS = 10;
+
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+	private Metrics metrics = Metrics.getInstance();
+
+	private final Client client;
+	private final long maxBackoffMillis;
+
+	// guarded by this
+	private final SegmentLog log;
+
+	private ScheduledExecutorService replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "es-retry");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// used by the replayer thread only
+	private long backoffMillis = MIN_BACKOFF_MILLIS;
+
+	/**
+	 * @param dir the spool dir. Requests left from a previous run are sent first
+	 * @param client sends the spooled requests
+	 * @param maxBackoffMillis max delay between attempts while the cluster is down
+	 */
+	public RetrySpool(Path dir, Client client, long maxBackoffMillis) throws IOException
+	{
+		this.client = client;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.log = new SegmentLog(dir, PREFIX, ENTRIES_PER_SEGMENT);
+
+		metrics.registerGauge("es.spool.depth", () -> size());
+	}
+
+	public void start()
+	{
+		replayer.schedule(() -> replay(), MIN_BACKOFF_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	public void shutdown()
+	{
+		Utils.shutdownExecutor(replayer, 5);
+		synchronized (this) {
+			try {
+				log.close();
+			} catch (IOException e) {
+				logger.log(Level.INFO, "RetrySpool: cannot close", e);
+			}
+		}
+	}
+
+	/**
+	 * Keep requests for a later retry. Only appended to the OS buffers, so
+	 * this is as fast as the write path needs.
+	 */
+	public synchronized void addAll(List<IndexRequest> requests)
+	{
+		try {
+			for (IndexRequest r : requests) log.append(toEntry(r));
+			log.flush(false);
+			metrics.add("es.spool.added", requests.size());
+		} catch (IOException e) {
+			metrics.add("es.spool.lost", requests.size());
+			logger.log(Level.SEVERE, "RetrySpool: lost " + requests.size() + " index requests", e);
+		}
+	}
+
+	public void add(IndexRequest request)
+	{
+		List<IndexRequest> requests = new ArrayList<>(1);
+		requests.add(request);
+		addAll(requests);
+	}
+
+	public synchronized long size()
+	{
+		return log.size();
+	}
+
+	public synchronized boolean isEmpty()
+	{
+		return log.isEmpty();
+	}
+
+	/**
+	 * Whether a failed index request is worth sending again: the cluster
+	 * was busy or broken, rather than the document being bad.
+	 */
+	public static boolean isRetryable(RestStatus status)
+	{
+		return status == RestStatus.TOO_MANY_REQUESTS || status.getStatus() >= 500;
+	}
+
+	// Send a batch, and schedule the next one: at once while the cluster
+	// takes them, later while it does not.
+	private void replay()
+	{
+		long delay = MIN_BACKOFF_MILLIS;
+		try {
+			if (!isEmpty()) {
+				delay = replayBatch() ? 0 : backoff();
+			}
+		} catch (RuntimeException e) {
+			logger.fine("RetrySpool: cluster still unavailable: " + e.getMessage());
+			delay = backoff();
+		} finally {
+			if (!replayer.isShutdown()) {
+				replayer.schedule(() -> replay(), delay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	// True if the cluster took the batch
+	private boolean replayBatch()
+	{
+		// take entries off the disk only once the cluster answers
+		client.admin().cluster().prepareHealth().get(TimeValue.timeValueSeconds(HEALTH_TIMEOUT_SECS));
+
+		// the entries stay on disk until the cluster answered for them
+		List<String> entries;
+		synchronized (this) {
+			try {
+				entries = log.peek(REPLAY_BATCH);
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "RetrySpool: cannot read the spool", e);
+				return false;
+			}
+		}
+
+		BulkRequest bulk = new BulkRequest();
+		for (String entry : entries) {
+			try {
+				bulk.add(fromEntry(entry));
+			} catch (RuntimeException e) {
+				logger.warning("RetrySpool: dropping a bad entry: " + e.getMessage());
+			}
+		}
+		if (bulk.numberOfActions() == 0) {
+			commit();
+			return true;
+		}
+
+		// on failure the entries are not committed, and are sent again
+		BulkResponse response = client.bulk(bulk).actionGet(REPLAY_TIMEOUT_SECS, TimeUnit.SECONDS);
+
+		List<IndexRequest> retry = new ArrayList<>();
+		for (BulkItemResponse item : response.getItems()) {
+			if (!item.isFailed()) continue;
+			if (isRetryable(item.getFailure().getStatus())) {
+				retry.add((IndexRequest)bulk.requests().get(item.getItemId()));
+			} else {
+				logger.warning("RetrySpool: dropping " + item.getType() + " " + item.getId() +
+						": " + item.getFailureMessage());
+			}
+		}
+		if (!retry.isEmpty()) addAll(retry);
+		commit();
+
+		int sent = response.getItems().length - retry.size();
+		metrics.add("es.spool.replayed", sent);
+		logger.info("RetrySpool: replayed " + sent + " index requests, " + size() + " left");
+
+		if (retry.size() < bulk.numberOfActions()) {
+			backoffMillis = MIN_BACKOFF_MILLIS;
+			return true;
+		}
+		return false;
+	}
+
+	private long backoff()
+	{
+		long delay = backoffMillis;
+		backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+		return delay;
+	}
+
+	// Remove the replayed entries from the spool
+	private synchronized void commit()
+	{
+		try {
+			log.commit();
+		} catch (IOException e) {
+			// they are sent again after a restart
+			logger.log(Level.INFO, "RetrySpool: cannot remove replayed entries", e);
+		}
+	}
+
+	// A single line entry. Our documents are all json.
+	private static String toEntry(IndexRequest r)
+	{
+		return new JSONObject()
+				.put("index", r.index())
+				.put("type", r.type())
+				.put("id", r.id())
+				.put("parent", r.parent())
+				.put("source", r.source().utf8ToString())
+				.toString();
+	}
+
+	private static IndexRequest fromEntry(String entry)
+	{
+		JSONObject json = new JSONObject(entry);
+		return new IndexRequest(json.getString("index"), json.getString("type"),
+					json.optString("id", null))
+				.source(json.getString("source"), XContentType.JSON)
+				.parent(json.optString("parent", null));
+	}
+}
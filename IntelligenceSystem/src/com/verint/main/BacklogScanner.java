@@ -0,0 +1,142 @@
+package com.verint.main;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.verint.utils.ErrorLogger;
+import com.verint.utils.Metrics;
+
+/**
+ * Loads the files that were on the files path before we started watching
+ * it. Runs after the watch is registered, so no file is missed.
+ *
+ * The dir tree is walked lazily, a dir at a time, and files are handed to
+ * the prepare stage only while it has room - so the backlog is never held
+ * in memory, and the prepare stage is never flooded.
+ *
+ * There is no separate checkpoint: finished files are moved out of the
+ * files path, and samples in flight are skipped by the submit filter - so
+ * a scan after a restart naturally resumes where the last one stopped.
+ */
+public class BacklogScanner implements Runnable
+{
+	private static final int PROGRESS_EVERY = 10000;
+	private static final long BACKPRESSURE_WAIT_MILLIS = 50;
+
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private final Path root;
+	private final long watchStart;
+	private final Consumer<Path> submit;
+	private final Consumer<Path> track;
+	private final IntSupplier pending;
+	private final int maxPending;
+
+	private AtomicLong scanned = new AtomicLong();
+	private AtomicLong tracked = new AtomicLong();
+	private volatile boolean stopFlag = false;
+
+	/**
+	 * @param root the dir to scan
+	 * @param watchStart when the watch was registered
+	 * @param submit loads a file
+	 * @param track loads a file once it finished copying. Used for files
+	 *  that changed since the watch started
+	 * @param pending number of files waiting in the prepare stage
+	 * @param maxPending scanning waits while this many files are waiting
+	 */
+	public BacklogScanner(Path root, long watchStart, Consumer<Path> submit, Consumer<Path> track,
+			IntSupplier pending, int maxPending)
+	{
+		this.root = root;
+		this.watchStart = watchStart;
+		this.submit = submit;
+		this.track = track;
+		this.pending = pending;
+		this.maxPending = maxPending;
+
+		Metrics.getInstance().registerGauge("backlog.scanned", () -> scanned.get());
+	}
+
+	@Override
+	public void run()
+	{
+		long start = System.currentTimeMillis();
+		logger.info("Main: scanning existing files in dir: " + root);
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+				{
+					if (stopFlag) return FileVisitResult.TERMINATE;
+					if (attrs.isRegularFile() && !file.endsWith(".txt")) { // omit txt files
+						load(file, attrs);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e)
+				{
+					logger.fine("Main: cannot scan " + file + ": " + e.getMessage());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			logger.log(Level.INFO, "problem loading current files in dir: " + e.getMessage());
+		}
+
+		long secs = Math.max(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - start), 1);
+		logger.info("Main: " + (stopFlag ? "stopped" : "finished") + " scanning existing files: " +
+				scanned.get() + " files (" + tracked.get() + " still changing) in " + secs +
+				" secs, " + scanned.get() / secs + " files/sec");
+	}
+
+	public void stop()
+	{
+		stopFlag = true;
+	}
+
+	private void load(Path file, BasicFileAttributes attrs)
+	{
+		awaitRoom();
+		if (stopFlag) return;
+
+		// a file that changed since we watch may still be copying. The watch
+		// events of such a file go to the same tracker, which loads it once.
+		if (attrs.lastModifiedTime().toMillis() >= watchStart) {
+			tracked.incrementAndGet();
+			track.accept(file);
+		} else {
+			submit.accept(file);
+		}
+
+		if (scanned.incrementAndGet() % PROGRESS_EVERY == 0) {
+			logger.info("Main: scanned " + scanned.get() + " existing files, " +
+					pending.getAsInt() + " waiting for preparation");
+		}
+	}
+
+	// Wait until the prepare stage has room, or we are stopped
+	private void awaitRoom()
+	{
+		while (!stopFlag && pending.getAsInt() >= maxPending) {
+			try {
+				Thread.sleep(BACKPRESSURE_WAIT_MILLIS);
+			} catch (InterruptedException e) {
+				logger.fine("Main: backlog scan interrupted");
+				stopFlag = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.verint.main;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.verint.exceptions.FileSubmittionFailedException;
+import com.verint.utils.ErrorLogger;
+
+/**
+ * Adapts a blocking controller (EDR, CNC) to a SampleAnalyzer, by calling
+ * it on an executor.
+ */
+public class BlockingAnalyzer implements SampleAnalyzer
+{
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private final EngineController controller;
+	private final Executor executor;
+	private final CheckType type;
+
+	public BlockingAnalyzer(EngineController controller, Executor executor)
+	{
+		this.controller = controller;
+		this.executor = executor;
+		this.type = controller.getControllerData().getCheckType();
+	}
+
+	@Override
+	public CompletionStage<PerformedTest> analyze(SampleFile sample, Runnable started)
+	{
+		CompletableFuture<PerformedTest> result = new CompletableFuture<>();
+		try {
+			executor.execute(() -> {
+				// cancelled while waiting
+				if (result.isDone()) return;
+
+				started.run();
+				result.complete(runController(sample));
+			});
+		} catch (RejectedExecutionException e) {
+			logger.warning("Main: " + type + " controller is full, not running on " + sample.getPath());
+			result.complete(failed("controller queue is full"));
+		}
+		return result;
+	}
+
+	private PerformedTest runController(SampleFile sample)
+	{
+		try {
+			controller.getDataOnFile(sample);
+			return new PerformedTest.Builder(type).supported(true).success(true).build();
+		} catch (FileSubmittionFailedException e) {
+			return failed(e.getMessage());
+		} catch (RuntimeException e) {
+			logger.log(Level.SEVERE, "Main: " + type + " controller failed", e);
+			return failed(e.getMessage());
+		}
+	}
+
+	private PerformedTest failed(String description)
+	{
+		return new PerformedTest.Builder(type)
+				.supported(true)
+				.success(false)
+				.description(description)
+				.build();
+	}
+
+	@Override
+	public ControllerData getControllerData()
+	{
+		return controller.getControllerData();
+	}
+}
@@ -0,0 +1,83 @@
+package com.verint.main;
+
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tracks the tests of a sample, from many threads at once, without locks.
+ * Expected and done tests are kept as bitsets of CheckType ordinals, and
+ * the sample is finished exactly once, by the first caller that sees all
+ * the expected tests done.
+ */
+public class CompletionTracker
+{
+	private static final int ALL = (1 << CheckType.values().length) - 1;
+
+	// test results, by CheckType ordinal
+	private final AtomicReferenceArray<PerformedTest> tests = 
+			new AtomicReferenceArray<>(CheckType.values().length);
+
+	private final AtomicInteger done = new AtomicInteger();
+	private volatile int expected = ALL;
+	private final AtomicBoolean finished = new AtomicBoolean();
+
+	public void setExpected(EnumSet<CheckType> types)
+	{
+		expected = toMask(types);
+	}
+
+	/**
+	 * Record a test result. A later result of the same type replaces it.
+	 */
+	public void record(PerformedTest test)
+	{
+		int ordinal = test.getCheckType().ordinal();
+		tests.set(ordinal, test);
+		done.getAndUpdate(mask -> mask | (1 << ordinal));
+	}
+
+	public PerformedTest get(CheckType type)
+	{
+		return tests.get(type.ordinal());
+	}
+
+	/**
+	 * Are all the expected tests done
+	 */
+	public boolean isComplete()
+	{
+		int exp = expected;
+		return (done.get() & exp) == exp;
+	}
+
+	/**
+	 * Mark as finished, if all the expected tests are done
+	 *
+	 * @return true for one caller only - the one that should finish the sample
+	 */
+	public boolean tryFinish()
+	{
+		return isComplete() && finished.compareAndSet(false, true);
+	}
+
+	public boolean isFinished()
+	{
+		return finished.get();
+	}
+
+	private static int toMask(EnumSet<CheckType> types)
+	{
+		int mask = 0;
+		for (CheckType t : types) mask |= 1 << t.ordinal();
+		return mask;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("CompletionTracker [done=%s, expected=%s, finished=%s]", 
+				Integer.toBinaryString(done.get()), Integer.toBinaryString(expected), finished.get());
+	}
+}
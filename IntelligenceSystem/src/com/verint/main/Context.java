@@ -26,6 +26,11 @@ public class Context {
 		this.description = description;
 	}
 	
+	public Context(UUID contextId, String description, int runningStep) {
+		this(contextId, description);
+		this.runningStep.set(runningStep);
+	}
+	
 	public UUID getContextId() {
 		return contextId;
 	}
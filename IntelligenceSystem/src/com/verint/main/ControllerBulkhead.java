@@ -0,0 +1,75 @@
+package com.verint.main;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+import com.verint.utils.Config;
+import com.verint.utils.ErrorLogger;
+import com.verint.utils.Metrics;
+import com.verint.utils.ThreadPools;
+import com.verint.utils.Utils;
+
+/**
+ * Runs the work of a single controller, on its own bounded pool and queue.
+ * A slow or blocked controller fills only its own bulkhead, and can't
+ * hold back the others or the main loop.
+ */
+public class ControllerBulkhead implements Executor
+{
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private final CheckType type;
+	private final ExecutorService executor;
+	private final String name;
+
+	public ControllerBulkhead(CheckType type)
+	{
+		this(type, Config.getControllerThreads(type), Config.getControllerQueueSize(type));
+	}
+
+	/**
+	 * @param type the controller type
+	 * @param threads max concurrent calls to the controller
+	 * @param queueSize max samples waiting for the controller
+	 */
+	public ControllerBulkhead(CheckType type, int threads, int queueSize)
+	{
+		this.type = type;
+		this.executor = ThreadPools.newBoundedExecutor(
+				type.toString().toLowerCase() + "-controller", threads, queueSize);
+
+		this.name = "controller." + type.toString().toLowerCase();
+		Metrics.getInstance().registerGauge(name + ".queue.depth", () -> ThreadPools.getQueuedCount(executor));
+		Metrics.getInstance().registerGauge(name + ".active", () -> ThreadPools.getActiveCount(executor));
+
+		logger.info("Main: " + type + " bulkhead: threads=" + threads + " queue=" + queueSize);
+	}
+
+	/**
+	 * Run the task on the bulkhead. Never blocks.
+	 *
+	 * @throws RejectedExecutionException if the bulkhead is full or shut down
+	 */
+	@Override
+	public void execute(Runnable task) throws RejectedExecutionException
+	{
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			Metrics.getInstance().increment(name + ".rejected");
+			throw e;
+		}
+	}
+
+	public CheckType getType()
+	{
+		return type;
+	}
+
+	public void shutdown()
+	{
+		Utils.shutdownExecutor(executor, 30);
+	}
+}
@@ -1,5 +1,7 @@
 package com.verint.main;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Predicate;
 
 import org.apache.tika.mime.MediaType;
@@ -18,6 +20,9 @@ public final class ControllerData
 	// Indicates what file types the controller supports
 	private final Predicate<MediaType> isSupported;
 	
+	// answers of isSupported by type. Asked per sample, over a few types
+	private final Map<MediaType, Boolean> supported = new ConcurrentHashMap<>();
+	
 	public ControllerData(CheckType type, Predicate<MediaType> isSupported)
 	{
 		this.checkType = type;
@@ -30,7 +35,7 @@ public final class ControllerData
 	}
 	
 	public boolean isTypeSupported(MediaType type){
-		return isSupported.test(type);
+		return supported.computeIfAbsent(type, t -> isSupported.test(t));
 	}
 
 	@Override
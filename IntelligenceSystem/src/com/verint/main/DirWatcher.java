@@ -1,112 +1,194 @@
 package com.verint.main;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
 import java.io.IOException;
 import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import com.verint.utils.Config;
+import com.verint.utils.DirSnapshot;
 import com.verint.utils.ErrorLogger;
+import com.verint.utils.Metrics;
+import com.verint.utils.Utils;
 
 /**
- * Watches a folder for new files, loads them to queue
+ * Watches a folder, and all folders under it, for new files, loads them to 
+ * queue
  * @author Assaf
  *
  */
 public class DirWatcher implements Runnable
 {
 	private Path filesPath;
-	private BlockingQueue<SampleFile> filesQueue;
+	private SamplePreparer preparer;
 	private Logger logger = ErrorLogger.getInstance().getLogger();
 	private boolean loadCurrent = true;
 	private volatile boolean stopFlag = false;
 	private WatchService watcher; 
+	
+	// the watched dirs, and the entries we know of in each - to recover 
+	// missed events on overflow. Used by the watching thread only.
+	private Map<WatchKey, Path> keys = new HashMap<>();
+	private Map<Path, DirSnapshot> snapshots = new HashMap<>();
+	
+	// events in this window are handled together
+	private final long coalesceMillis = Config.getWatchCoalesceMillis();
 	private FileDetails baseParams = new FileDetails();
 	
+	// files we should not load, e.g samples recovered from the journal
+	private Predicate<Path> skipFilter = p -> false;
+	
+	// when sharing the files path with other instances, the files we load 
+	// must be claimed first
+	private SampleClaims claims;
+	
+	// Checks when new files finished copying, for all files together
+	private ScheduledExecutorService readinessScheduler = Executors.newScheduledThreadPool(1);
+	private FileReadinessTracker readiness;
+	
+	// Ready files are loaded here, so neither the watcher nor the readiness
+	// checks wait on a full prepare stage
+	private ExecutorService admitExecutor = Executors.newSingleThreadExecutor();
+	
+	// loads the files that were there before we started
+	private BacklogScanner backlogScanner;
+	private volatile boolean scanning = false;
+	
+	// files (and dirs) the watcher found while the backlog is scanned, so
+	// the scan does not load them again. A file moved in keeps its mtime, 
+	// and is found by both
+	private Set<Path> loadedWhileScanning = ConcurrentHashMap.newKeySet();
+	
+	// new dirs on the files path, until their params file is ready or they
+	// stopped changing. Their files wait meanwhile, so that a params file 
+	// copied last still applies to them. The files are used by the admit
+	// thread only
+	private Set<Path> newDirs = ConcurrentHashMap.newKeySet();
+	private Map<Path, List<Path>> waitingForParams = new HashMap<>();
+	
 	/**
 	 * Create a new dir watcher
 	 * @param filesPath the path to watch
-	 * @param filesQueue the files queue to load the files to
+	 * @param preparer the prepare stage to pass the files to
 	 */
-	public DirWatcher(Path filesPath, BlockingQueue<SampleFile> filesQueue)
+	public DirWatcher(Path filesPath, SamplePreparer preparer)
 	{
-		this(filesPath, filesQueue, true);
+		this(filesPath, preparer, true);
 	}
 	
 	/**
 	 * Create a new dir watcher
 	 * @param filesPath the path to watch
-	 * @param filesQueue the files queue to load the files to
+	 * @param preparer the prepare stage to pass the files to
 	 * @param loadCurrent whether to load current files on dir, or only new ones
 	 */
-	public DirWatcher(Path filesPath, BlockingQueue<SampleFile> filesQueue, boolean loadCurrent)
+	public DirWatcher(Path filesPath, SamplePreparer preparer, boolean loadCurrent)
 	{
-		this.filesQueue = filesQueue;
+		this.preparer = preparer;
 		
 		// the dir we watch for files to submit
 		this.filesPath = filesPath;
 		
 		this.loadCurrent = loadCurrent;
+		
+		this.readiness = new FileReadinessTracker(readinessScheduler, 
+				TimeUnit.SECONDS.toMillis(Config.getFilesReadyQuietSecs()), 
+				Config.getFilesReadyCheckMillis(), 
+				paths -> admitExecutor.submit(() -> admitReadyFiles(paths)));
 	}
 	
-	// Watches the given dir for new files and updates the queue
-	@SuppressWarnings("unchecked")
+	/**
+	 * Set a filter for files that should not be loaded (e.g. files that are
+	 * already in process). Must be called before the watcher runs.
+	 */
+	public void setSkipFilter(Predicate<Path> skipFilter)
+	{
+		this.skipFilter = skipFilter;
+	}
+	
+	/**
+	 * Load only files claimed for this instance. Must be called before the 
+	 * watcher runs.
+	 */
+	public void setClaims(SampleClaims claims)
+	{
+		this.claims = claims;
+	}
+	
+	/**
+	 * Load a file again, e.g. one taken over from another instance
+	 */
+	public void reload(Path path)
+	{
+		addToQueue(path);
+	}
+	
+	// Watches the given dir tree for new files and updates the queue
 	private void watchDirForNewFiles() {
-		// read all current files from dir before watching for new ones
-		if (loadCurrent)
-			loadCurrentFilesInDir();
 		try {
 			watcher = FileSystems.getDefault().newWatchService();
 			
-			// register for events on new files
-			WatchKey key = filesPath.register(watcher, ENTRY_CREATE);
-			logger.info("Main: Starting to watch on dir: " + filesPath);
-			while (!stopFlag) {
+			// register all the dirs for events on new files. Modify events 
+			// tell us a file is still being written, delete events keep the 
+			// snapshots current
+			long watchStart = System.currentTimeMillis();
+			registerTree(filesPath, false);
+			readiness.start();
+			logger.info("Main: Starting to watch on dir: " + filesPath + " (" + keys.size() + " dirs)");
+			
+			// load the files that were already there, now that none is missed
+			if (loadCurrent)
+				loadCurrentFilesInDir(watchStart);
+			while (!stopFlag && snapshots.containsKey(filesPath)) {
+				WatchKey key;
 				try {
 					// wait for key to be signaled
 					key = watcher.take();
-					
 				} catch (InterruptedException x) {
 					logger.fine("Main: watching dir interrupted");
 					continue;
 				}
 
-				for (WatchEvent<?> event : key.pollEvents()) {
-					// an OVERFLOW event can occur, if events are lost or discarded.
-					if (event.kind() == OVERFLOW) {
-						continue;
+				// take the events of all dirs signaled within the window 
+				// together, so repeated events of a path are handled once
+				Map<Path, WatchEvent.Kind<?>> batch = new LinkedHashMap<>();
+				long until = System.currentTimeMillis() + coalesceMillis;
+				try {
+					while (key != null) {
+						collectEvents(key, batch);
+						long left = until - System.currentTimeMillis();
+						key = (left > 0) ? watcher.poll(left, TimeUnit.MILLISECONDS) : watcher.poll();
 					}
-
-					// The filename is the context of the event.
-					Path newPath = ((WatchEvent<Path>) event).context();
-					logger.info("Main: New path created: " + newPath);
-
-					// Without this, it doesn't recognize dirs.
-					Path resolved = filesPath.resolve(newPath);
-
-					waitForFileToFinishCopying(resolved);
-					processNewFile(resolved);
-				}
-
-				// Reset the key -- this step is critical if you want to
-				// receive further watch events. If the key is no longer valid,
-				// the directory is inaccessible so exit the loop.
-				if (!key.reset()) {
-					break;
+				} catch (InterruptedException x) {
+					logger.fine("Main: watching dir interrupted");
 				}
+				dispatch(batch);
 			}
 		} 
 		catch (IOException e) {
@@ -121,37 +203,167 @@ public class DirWatcher implements Runnable
 		// finished - either by exception, or by key reset.
 		logger.info("Dir watcher is down");
 	}
+	
+	// Register the dirs of a tree. The snapshot of an existing dir is taken
+	// before it is registered - its files are loaded by the backlog scan. A 
+	// new dir is registered first, and its files are loaded as we walk it.
+	private void registerTree(Path root, boolean isNew) throws IOException
+	{
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+					throws IOException
+			{
+				DirSnapshot snapshot = new DirSnapshot(dir);
+				if (!isNew) snapshot.init();
+				WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+				if (isNew) snapshot.init();
+				
+				keys.put(key, dir);
+				snapshots.put(dir, snapshot);
+				return FileVisitResult.CONTINUE;
+			}
 
-	private void processNewFile(Path newPath) throws IOException {
-		if (Files.isDirectory(newPath)) {
-			logger.finer("Main: dir: " + newPath);
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+			{
+				if (isNew && attrs.isRegularFile()) {
+					logger.info("Main: New path created: " + file);
+					trackNew(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
 
-			// load params file
-			FileDetails params = loadParamsFile(newPath);
-			
-			// load all files recursively
-			List<Path> files = Files.walk(newPath)
-					.filter(Files::isRegularFile)
-					.filter(f -> !f.endsWith(".txt")) // omit txt files
-					.collect(Collectors.toList());
-			logger.fine("Main: Files: " + files.size());
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e)
+			{
+				logger.info("Main: cannot watch " + file + ": " + e.getMessage());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	// Add the events of a signaled dir to the batch
+	@SuppressWarnings("unchecked")
+	private void collectEvents(WatchKey key, Map<Path, WatchEvent.Kind<?>> batch)
+	{
+		Path dir = keys.get(key);
+		DirSnapshot snapshot = snapshots.get(dir);
+		if (dir == null || snapshot == null) {
+			key.cancel();
+			return;
+		}
+		
+		for (WatchEvent<?> event : key.pollEvents()) {
+			// an OVERFLOW event can occur, if events are lost or discarded.
+			// Find what we missed from the snapshot
+			if (event.kind() == OVERFLOW) {
+				logger.warning("Main: watch events overflow, reconciling " + dir);
+				Metrics.getInstance().increment("watch.overflow");
+				try {
+					for (WatchEvent<Path> missed : snapshot.reconcile()) {
+						coalesce(batch, dir.resolve(missed.context()), missed.kind());
+					}
+				} catch (IOException e) {
+					logger.log(Level.INFO, "Main: cannot reconcile " + dir + ": " + e.getMessage());
+				}
+				continue;
+			}
 
-			files.stream()
-				 .forEach(f -> addToQueue(f, params));
-		} else {
-			addToQueue(newPath);
+			// The filename is the context of the event.
+			Path newPath = ((WatchEvent<Path>) event).context();
+			if (snapshot.apply(event.kind(), newPath)) {
+				coalesce(batch, dir.resolve(newPath), event.kind());
+			}
+		}
+
+		// Reset the key -- this step is critical if you want to receive 
+		// further watch events. If the key is no longer valid, the dir was 
+		// deleted (or the files path is inaccessible, and the loop exits)
+		if (!key.reset()) {
+			keys.remove(key);
+			snapshots.remove(dir);
+		}
+	}
+	
+	// Keep a single event per path: a create followed by modifies is a 
+	// create, a create followed by a delete is nothing
+	private void coalesce(Map<Path, WatchEvent.Kind<?>> batch, Path path, WatchEvent.Kind<?> kind)
+	{
+		WatchEvent.Kind<?> previous = batch.get(path);
+		if (previous == null) {
+			batch.put(path, kind);
+			return;
+		}
+		
+		Metrics.getInstance().increment("watch.events.coalesced");
+		if (kind == ENTRY_DELETE) {
+			if (previous == ENTRY_CREATE) batch.remove(path);
+			else batch.put(path, ENTRY_DELETE);
+		} else if (kind == ENTRY_CREATE || previous == ENTRY_DELETE) {
+			batch.put(path, ENTRY_CREATE);
 		}
 	}
+	
+	private void dispatch(Map<Path, WatchEvent.Kind<?>> batch)
+	{
+		batch.forEach((path, kind) -> {
+			if (kind == ENTRY_MODIFY) {
+				readiness.touched(path);
+			} else if (kind == ENTRY_CREATE) {
+				if (Files.isDirectory(path)) {
+					if (path.getParent().equals(filesPath)) {
+						newDirs.add(path);
+						readiness.track(path);
+					}
+					
+					// watch the new dir too, and load what is already in it
+					try {
+						registerTree(path, true);
+					} catch (IOException e) {
+						logger.log(Level.INFO, "Main: cannot watch new dir " + path + ": " + e.getMessage());
+					}
+				} else {
+					// wait for the copy to finish, without blocking other files
+					logger.info("Main: New path created: " + path);
+					trackNew(path);
+				}
+			}
+		});
+	}
 
 	private void addToQueue(Path path) {
-		addToQueue(path, baseParams);
-		
+		addToQueue(path, paramsOf(path, new HashMap<>()));
 	}
 	
+	// The sample itself is built by the prepare stage, not on this thread
 	private void addToQueue(Path path, FileDetails params) {
-		logger.fine("Main: adding file to queue: " + path);
-		SampleFile sample = new SampleFile(path, params);
-		filesQueue.add(sample);
+		if (accept(path)) {
+			preparer.submit(path, params);
+		}
+	}
+	
+	private boolean accept(Path path) {
+		if (skipFilter.test(path)) {
+			logger.fine("Main: skipping file already in process: " + path);
+			return false;
+		}
+		if (claims != null && !claims.claim(path)) {
+			logger.fine("Main: skipping file claimed by another node: " + path);
+			return false;
+		}
+		return true;
+	}
+	
+	// Files on the files path use its params file. Files under a sub dir 
+	// use the params file of that sub dir.
+	private FileDetails paramsOf(Path file, Map<Path, FileDetails> cache)
+	{
+		Path relative = filesPath.relativize(file);
+		if (relative.getNameCount() < 2) return baseParams;
+		
+		return cache.computeIfAbsent(filesPath.resolve(relative.getName(0)), 
+				dir -> loadParamsFile(dir));
 	}
 	
 	private FileDetails loadParamsFile(Path dirPath)
@@ -166,41 +378,92 @@ public class DirWatcher implements Runnable
 		return ret;
 	}
 	
-	private void loadCurrentFilesInDir()
+	private void loadCurrentFilesInDir(long watchStart)
 	{
 		baseParams = loadParamsFile(filesPath);
 		
-		try{
-			List<Path> files = Files.walk(filesPath)
-					.filter(Files::isRegularFile) // omit dirs
-					.filter(f -> !f.endsWith(".txt")) // omit txt files
-					.collect(Collectors.toList());
-			logger.fine("Main: Existing files in dir: " + files.size());
-			files.forEach(f -> addToQueue(f));
-		}catch(IOException e)
-		{
-			logger.log(Level.INFO, "problem loading current files in dir: " + e.getMessage());
+		backlogScanner = new BacklogScanner(filesPath, watchStart, f -> addIfNotLoaded(f), 
+				f -> trackIfNotLoaded(f), () -> preparer.getPendingCount(), 
+				Config.getPrepareQueueSize());
+		
+		scanning = true;
+		Thread scanThread = new Thread(() -> {
+			backlogScanner.run();
+			scanning = false;
+			loadedWhileScanning.clear();
+		}, "backlog-scanner");
+		scanThread.setDaemon(true);
+		scanThread.start();
+	}
+	
+	// A new file found by the watcher, loaded once it finished copying
+	private void trackNew(Path file)
+	{
+		if (scanning)
+			loadedWhileScanning.add(file);
+		readiness.track(file);
+	}
+	
+	// A file the scan found may have been found by the watcher too
+	private boolean isLoadedByWatcher(Path file)
+	{
+		for (Path p = file; p != null && !p.equals(filesPath); p = p.getParent()) {
+			if (loadedWhileScanning.contains(p)) return true;
 		}
+		return false;
 	}
 	
-	// Doesn't work for big files/dirs.
-	// Tried everything: Getting last modified time. Renaming. Getting write
-	// access. locking. nothing works completely. 
-	private void waitForFileToFinishCopying(Path file) {
-		try {
-			long first, second;
-			do {
-				first = Files.getLastModifiedTime(file).to(TimeUnit.MICROSECONDS);
-				try {
-					TimeUnit.SECONDS.sleep(12);
-				} catch (InterruptedException e) {
-					logger.fine("wait for copy interrupted");
+	private void addIfNotLoaded(Path file)
+	{
+		if (!isLoadedByWatcher(file)) addToQueue(file);
+	}
+	
+	private void trackIfNotLoaded(Path file)
+	{
+		if (!isLoadedByWatcher(file)) readiness.track(file);
+	}
+	
+	// Called once the readiness tracker decides which files finished copying.
+	// They are passed to the prepare stage together.
+	private void admitReadyFiles(List<Path> paths) {
+		Map<Path, FileDetails> params = new HashMap<>();
+		List<PendingSample> batch = new ArrayList<>(paths.size());
+		for (Path path : paths) {
+			if (scanning)
+				loadedWhileScanning.add(path);
+			
+			Path newDir = newDirOf(path);
+			if (newDir != null) {
+				if (!path.equals(newDir) && !path.equals(newDir.resolve(Config.getParamsPath()))) {
+					waitingForParams.computeIfAbsent(newDir, d -> new ArrayList<>()).add(path);
+					continue;
 				}
-				second = Files.getLastModifiedTime(file).to(TimeUnit.MICROSECONDS);
-			} while (first < second);
-		} catch (IOException e) {
-			logger.log(Level.INFO, "waiting for copy finish exception: " + e.getMessage());
+				
+				// the dir has its params now, or never will
+				newDirs.remove(newDir);
+				List<Path> waiting = waitingForParams.remove(newDir);
+				if (waiting != null) waiting.forEach(p -> admit(p, params, batch));
+			}
+			admit(path, params, batch);
 		}
+		preparer.submitAll(batch);
+	}
+	
+	private void admit(Path path, Map<Path, FileDetails> params, List<PendingSample> batch) {
+		// txt files are omitted, as are dirs (we watch their files)
+		if (Files.isRegularFile(path) && !path.endsWith(".txt") && accept(path)) {
+			batch.add(new PendingSample(path, paramsOf(path, params)));
+		}
+	}
+	
+	// The new dir the path is in (or is), if the dir still waits for its params
+	private Path newDirOf(Path path) {
+		if (newDirs.isEmpty()) return null;
+		
+		Path relative = filesPath.relativize(path);
+		if (relative.getNameCount() < 1) return null;
+		Path dir = filesPath.resolve(relative.getName(0));
+		return newDirs.contains(dir) ? dir : null;
 	}
 
 	@Override
@@ -213,6 +476,12 @@ public class DirWatcher implements Runnable
 	{
 		stopFlag= true;
 		
+		if (backlogScanner != null)
+			backlogScanner.stop();
+		readiness.stop();
+		Utils.shutdownExecutor(readinessScheduler, 5);
+		Utils.shutdownExecutor(admitExecutor, 30);
+		
 		try {
 			watcher.close();
 		} catch (IOException e) {
@@ -32,6 +32,9 @@ public class FileDetails
 	// Maliciousness of the file
 	private Maliciousness maliciousness = Maliciousness.UNKNOWN;
 	
+	// analyse the file even if it is already known
+	private boolean rescan = false;
+	
 	public FileDetails(){
 	}
 	
@@ -55,6 +58,11 @@ public class FileDetails
 		this.fileSource = fileSource;
 	}
 	
+	public boolean isRescan()
+	{
+		return rescan;
+	}
+	
 	public List<String> getParams()
 	{
 		return params;
@@ -68,31 +76,50 @@ public class FileDetails
 						
 			// read the file
 			String content = new String(Files.readAllBytes(paramsFile));
-			JSONObject json = new JSONObject(content);
-			
-			// source
-			this.fileSource = json.optString("source");
-			
-			// maliciousness
-			String malStr = json.optString("maliciousness");
-			
-			try{
-				this.maliciousness = Maliciousness.valueOf(malStr.toUpperCase());
-			}catch(IllegalArgumentException e){
-			}
-			
-			// params
-			JSONArray arr = json.getJSONArray("params");
-			for (int i = 0; i < arr.length(); i++){
-				this.params.add(arr.get(i).toString());
-			}
-			
-			// search string
-			this.searchString = json.optString("search");
+			loadFromJson(new JSONObject(content));
 		} catch (IOException | JSONException e) {
 			logger.finer("problem reading file params " + e.getMessage());
 		}
 	}
+	
+	// Same format as the params file
+	public void loadFromJson(JSONObject json) throws JSONException
+	{
+		// source
+		this.fileSource = json.optString("source");
+		
+		// maliciousness
+		String malStr = json.optString("maliciousness");
+		
+		try{
+			this.maliciousness = Maliciousness.valueOf(malStr.toUpperCase());
+		}catch(IllegalArgumentException e){
+		}
+		
+		// params
+		JSONArray arr = json.getJSONArray("params");
+		for (int i = 0; i < arr.length(); i++){
+			this.params.add(arr.get(i).toString());
+		}
+		
+		// search string
+		this.searchString = json.optString("search");
+		
+		// rescan
+		this.rescan = json.optBoolean("rescan");
+	}
+	
+	// Same format as the params file
+	public JSONObject toJson()
+	{
+		JSONObject json = new JSONObject();
+		json.put("source", fileSource);
+		json.put("maliciousness", maliciousness.toString().toLowerCase());
+		json.put("params", new JSONArray(params));
+		json.put("search", searchString);
+		json.put("rescan", rescan);
+		return json;
+	}
 
 	@Override
 	public String toString()
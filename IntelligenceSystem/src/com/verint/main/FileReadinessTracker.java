@@ -0,0 +1,177 @@
+package com.verint.main;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import com.verint.utils.ErrorLogger;
+
+/**
+ * Decides when newly created files (or dirs) finished copying, without
+ * blocking the thread that consumes the watch events.
+ *
+ * Candidates are checked together on a shared scheduler. A candidate is
+ * ready once its size and modification time did not change for a whole
+ * quiet window. Modify events (the closest thing to inotify close-write
+ * the jdk watch service gives us) restart the window of the file.
+ */
+public class FileReadinessTracker
+{
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	// Files we wait on, by path
+	private ConcurrentMap<Path, Candidate> candidates = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService scheduler;
+	private final Consumer<List<Path>> onReady;
+	private final long quietMillis;
+	private final long checkMillis;
+	private ScheduledFuture<?> task;
+
+	/**
+	 * Create a new tracker
+	 * @param scheduler the scheduler used for the stability checks
+	 * @param quietMillis how long a file must stay unchanged to be ready
+	 * @param checkMillis the interval between checks
+	 * @param onReady called (on the scheduler thread) with the files found
+	 * ready on each check
+	 */
+	public FileReadinessTracker(ScheduledExecutorService scheduler, long quietMillis,
+			long checkMillis, Consumer<List<Path>> onReady)
+	{
+		this.scheduler = scheduler;
+		this.quietMillis = quietMillis;
+		this.checkMillis = checkMillis;
+		this.onReady = onReady;
+	}
+
+	public void start()
+	{
+		task = scheduler.scheduleWithFixedDelay(() -> checkCandidates(),
+				checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop()
+	{
+		if (task != null) task.cancel(false);
+		candidates.clear();
+	}
+
+	/**
+	 * Start tracking the given path
+	 */
+	public void track(Path path)
+	{
+		candidates.putIfAbsent(path, new Candidate());
+	}
+
+	/**
+	 * Indicate the given path was modified, which restarts its quiet window.
+	 * Unknown paths are ignored.
+	 */
+	public void touched(Path path)
+	{
+		Candidate c = candidates.get(path);
+		if (c != null) c.changedAt = System.currentTimeMillis();
+	}
+
+	public int getPendingCount()
+	{
+		return candidates.size();
+	}
+
+	// Called periodically by the scheduler
+	private void checkCandidates()
+	{
+		long now = System.currentTimeMillis();
+		List<Path> ready = new ArrayList<>();
+
+		for (Iterator<Map.Entry<Path, Candidate>> iter =
+				candidates.entrySet().iterator(); iter.hasNext();) {
+			Map.Entry<Path, Candidate> entry = iter.next();
+			Path path = entry.getKey();
+			Candidate c = entry.getValue();
+
+			try {
+				long[] state = readState(path);
+				if (state[0] != c.size || state[1] != c.modified) {
+					c.size = state[0];
+					c.modified = state[1];
+					c.changedAt = now;
+					continue;
+				}
+
+				if (now - c.changedAt >= quietMillis) {
+					iter.remove();
+					logger.fine("Main: file is ready: " + path);
+					ready.add(path);
+				}
+			} catch (NoSuchFileException e) {
+				// deleted or moved before it was complete
+				logger.fine("Main: file disappeared while waiting: " + path);
+				iter.remove();
+			} catch (IOException e) {
+				logger.log(Level.INFO, "waiting for copy finish exception: " + e.getMessage());
+			}
+		}
+
+		if (!ready.isEmpty()) notifyReady(ready);
+	}
+
+	private void notifyReady(List<Path> ready)
+	{
+		// The scheduler stops on an uncaught exception. Keep it alive.
+		try {
+			onReady.accept(ready);
+		} catch (Exception e) {
+			logger.log(Level.SEVERE, "Main: problem handling ready files " + ready, e);
+		}
+	}
+
+	// Returns [size, modified time]. For dirs - total size and latest
+	// modification of everything under it.
+	private long[] readState(Path path) throws IOException
+	{
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		if (!attrs.isDirectory()) {
+			return new long[] {attrs.size(), attrs.lastModifiedTime().toMillis()};
+		}
+
+		long[] state = {0, attrs.lastModifiedTime().toMillis()};
+		try (Stream<Path> files = Files.walk(path)) {
+			files.forEach(f -> {
+				try {
+					BasicFileAttributes a = Files.readAttributes(f, BasicFileAttributes.class);
+					state[0] += a.size();
+					state[1] = Math.max(state[1], a.lastModifiedTime().toMillis());
+				} catch (IOException e) {
+					// file replaced during the walk, next check will catch it
+				}
+			});
+		}
+		return state;
+	}
+
+	// A file we wait on
+	private static class Candidate
+	{
+		volatile long size = -1;
+		volatile long modified = -1;
+		volatile long changedAt = System.currentTimeMillis();
+	}
+}
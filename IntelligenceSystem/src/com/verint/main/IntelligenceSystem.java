@@ -1,29 +1,39 @@
 package com.verint.main;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import org.apache.tika.mime.MediaType;
 
 import com.verint.es.ESHandler;
 import com.verint.exceptions.FileSubmittionFailedException;
-import com.verint.moloch.MolochController;
+import com.verint.main.VerdictCache.Verdict;
+import com.verint.pipeline.Pipeline;
+import com.verint.pipeline.StageEvent;
+import com.verint.utils.ColdStorage;
 import com.verint.utils.Config;
 import com.verint.utils.DailyReportGenerator;
 import com.verint.utils.ErrorLogger;
+import com.verint.utils.Metrics;
+import com.verint.utils.ThreadPools;
+import com.verint.utils.TimingWheel;
+import com.verint.utils.TimingWheel.Timeout;
 import com.verint.utils.Utils;
 
 
@@ -35,43 +45,100 @@ import com.verint.utils.Utils;
 public class IntelligenceSystem {
 	private Logger logger = ErrorLogger.getInstance().getLogger();
 	
-	private Path filesPath, savePath;
+	private Path filesPath;
+	
+	// processed samples, by content
+	private SampleStore store;
+	
+	// compresses old stored files
+	private ColdStorage coldStorage;
 	
 	// incoming files queue
-	private BlockingQueue<SampleFile> filesQueue = new ArrayBlockingQueue<>(80);
+	private BlockingQueue<SampleFile> filesQueue = new SampleScheduler();
 	
 	// queue for files waiting for asynchronous response
 	private ConcurrentMap<String, SampleFile> waitingQueue = new ConcurrentHashMap<>();
 	
+	// deadlines of samples in the waiting queue, and of their tests
+	private TimingWheel deadlines = new TimingWheel("deadlines", 1, TimeUnit.SECONDS, 512);
+	private ConcurrentMap<String, Timeout> sampleDeadlines = new ConcurrentHashMap<>();
+	
+	// tests dispatched to the controllers and not done yet, by sample es id
+	private ConcurrentMap<String, Map<CheckType, RunningTest>> runningTests = new ConcurrentHashMap<>();
+	
 	private EnumSet<CheckType> expectedTests = EnumSet.noneOf(CheckType.class);
 	
 	private ExecutorService executor; 
 	private DirWatcher dirWatcher;
+	
+	// prepares new files as samples, in parallel
+	private SamplePreparer preparer;
+	
+	// journals samples lifecycle, so in flight samples survive restarts
+	private SampleJournal journal;
+	
+	// verdicts of known samples, by hash
+	private VerdictCache verdicts;
+	
+	// claims on files, when the files path is shared with other instances
+	private SampleClaims claims;
 	private volatile boolean stopRequested = false;
 
 	// The list of controllers to run
 	private List<EngineController> controllers;
 	
+	// each controller runs on its own bulkhead, and is used through an analyzer
+	private List<ControllerBulkhead> bulkheads = new ArrayList<>();
+	private List<SampleAnalyzer> analyzers = new ArrayList<>();
+	
 	// Writes summary report on samples
 	private DailyReportGenerator reportGen = new DailyReportGenerator();
 	
 	
-	// TODO: some order here.
-	private MolochController moloch = new MolochController();
+	// runs the stages after the controllers (child samples, storage)
+	private Pipeline pipeline;
 	
 	public IntelligenceSystem() {
 		Utils.setLoggerLevels(true);
 		addShutdownHook();
 		
 		filesPath = Utils.getPath(Config.getFilesPath());
-		savePath = Utils.getPath(Config.getSavePath());
+		openStore();
 
 		loadControllers();
+		pipeline = new Pipeline(s -> executor.submit(() -> processSample(s)));
+		
+		Metrics.getInstance().startReporting(Config.getMetricsReportSecs());
+		Metrics.getInstance().registerGauge("waiting.samples", () -> waitingQueue.size());
+		Metrics.getInstance().registerGauge("deadlines.pending", () -> deadlines.getPendingCount());
+		
+		openVerdictCache();
+		
+		// Rebuild the samples that were in flight when we went down
+		List<SampleFile> recovered = recoverJournal();
+		if (Config.isClusterEnabled()) {
+			recovered = claimRecovered(recovered);
+		}
+		Set<Path> recoveredPaths = recovered.stream()
+				.map(s -> s.getPath().toAbsolutePath().normalize())
+				.collect(Collectors.toSet());
+		
+		// Start the prepare stage, and watching on files path
+		preparer = new SamplePreparer(filesQueue);
+		preparer.start();
 		
-		// Start watching on files path
-		executor = Executors.newCachedThreadPool();
-		executor.submit(dirWatcher = new DirWatcher(filesPath, filesQueue));
+		executor = ThreadPools.newTaskExecutor("samples");
+		dirWatcher = new DirWatcher(filesPath, preparer);
+		dirWatcher.setSkipFilter(p -> recoveredPaths.contains(p.toAbsolutePath().normalize()));
+		if (claims != null) {
+			dirWatcher.setClaims(claims);
+			claims.start(p -> dirWatcher.reload(p));
+		}
+		executor.submit(dirWatcher);
 
+		// resume the missing tests of recovered samples
+		recovered.forEach(s -> resumeSample(s));
+		
 		runControllers();
 	}
 	
@@ -80,18 +147,76 @@ public class IntelligenceSystem {
 		// load all needed controllers
 		controllers = ControllersFactroy.getInstance().getControllers();
 		
-		// add listeners to relevant controllers
-		final EngineListener listener = new EngineEventsHandler();
-		
 		controllers.forEach(c -> {
-			expectedTests.add(c.getControllerData().getCheckType());
-			if (c instanceof AsyncEngineController)
-				((AsyncEngineController)c).addListener(listener);
+			CheckType type = c.getControllerData().getCheckType();
+			expectedTests.add(type);
+			
+			ControllerBulkhead bulkhead = new ControllerBulkhead(type);
+			bulkheads.add(bulkhead);
+			analyzers.add(SampleAnalyzer.adapt(c, bulkhead));
 		});
 		
 		
 	}
 	
+	private void openStore()
+	{
+		try {
+			store = new SampleStore(Utils.getPath(Config.getSavePath()));
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot open samples storage", e);
+		}
+		
+		if (Config.getColdStorageDays() > 0) {
+			coldStorage = new ColdStorage(TimeUnit.DAYS.toMillis(Config.getColdStorageDays()));
+			store.addTo(coldStorage);
+			Config.getColdStoragePaths().forEach(p -> coldStorage.addDir(Utils.getPath(p), f -> true));
+			coldStorage.start(TimeUnit.HOURS.toMillis(Config.getColdStorageCheckHours()));
+		}
+	}
+	
+	private void openVerdictCache()
+	{
+		try {
+			verdicts = new VerdictCache(Utils.getPath(Config.getVerdictCachePath()), 
+					TimeUnit.HOURS.toMillis(Config.getVerdictCacheTtlHours()));
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Main: cannot open verdict cache, all samples are analysed", e);
+		}
+	}
+	
+	private List<SampleFile> recoverJournal()
+	{
+		journal = new SampleJournal(Utils.getPath(Config.getJournalPath()), 
+				Config.getJournalSyncMillis());
+		try {
+			return journal.recoverAndOpen();
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Main: cannot recover samples journal", e);
+			return Collections.emptyList();
+		}
+	}
+	
+	// Keep the recovered samples we still hold the claims on. The others 
+	// were taken over by other instances while we were down
+	private List<SampleFile> claimRecovered(List<SampleFile> recovered)
+	{
+		claims = new SampleClaims(Utils.getPath(Config.getClaimsPath()), filesPath, 
+				Config.getNodeId(), TimeUnit.SECONDS.toMillis(Config.getLeaseSecs()), 
+				TimeUnit.SECONDS.toMillis(Config.getHeartbeatSecs()));
+		
+		List<SampleFile> ours = new ArrayList<>();
+		for (SampleFile sample : recovered) {
+			if (claims.claim(sample.getPath())) {
+				ours.add(sample);
+			} else {
+				logger.info("Main: recovered sample was taken over: " + sample.getPath());
+				journal.finished(sample);
+			}
+		}
+		return ours;
+	}
+	
 	private void runControllers() 
 	{	
 		while (!stopRequested){
@@ -100,7 +225,6 @@ public class IntelligenceSystem {
 				SampleFile sample = filesQueue.take();
 				logger.info("Main: Submitting " + sample.getPath() + " to controllers");
 				
-				sample.setExpectedTests(expectedTests);
 				processSample(sample);
 			} catch (InterruptedException e) {
 				logger.fine("Main: FilesQueue interrupted on take... " + e.getMessage());
@@ -120,15 +244,83 @@ public class IntelligenceSystem {
 	// process a sample through available controllers
 	private void processSample(SampleFile sample)
 	{
-		// index the sample base document. We are not using a separate thread,
-		// to ensure the base doc will be there, before other data
+		sample.setExpectedTests(expectedTests);
+		Optional<Verdict> known = findVerdict(sample);
+		
+		// tests already done on this binary are not run again. The docs 
+		// holding their results are linked from the base doc
+		EnumSet<CheckType> reused = EnumSet.noneOf(CheckType.class);
+		known.ifPresent(v -> v.getDone().stream()
+				.filter(type -> expectedTests.contains(type))
+				.forEach(type -> {
+					reused.add(type);
+					sample.setResultsFrom(type, v.getEsId(type));
+				}));
+		
+		// index the sample base document. It is written asynchronously, so it
+		// may reach ES after the test docs - which is fine, as those only use
+		// its id to route as its children, and nothing reads it back
 		ESHandler.getInstance().indexSampleDoc(sample);
+		journal.admitted(sample);
 		
 		// Move file to waiting queue
 		waitingQueue.put(sample.getEsId(), sample);
+		scheduleDeadline(sample);
+		
+		known.ifPresent(v -> reused.forEach(type -> completeTest(sample, new PerformedTest.Builder(type)
+				.supported(v.isSupported(type))
+				.success(true)
+				.description("results from " + v.getEsId(type))
+				.build())));
 		
-		// Run all controllers in parralel. 
-		controllers.parallelStream().forEach((c) -> {
+		runMissingTests(sample);
+	}
+	
+	// The cached verdict of the sample, unless we were asked to rescan
+	private Optional<Verdict> findVerdict(SampleFile sample)
+	{
+		if (verdicts == null || Config.forceRescan() || sample.isForceRescan())
+			return Optional.empty();
+		
+		Optional<Verdict> known = verdicts.lookup(sample.getSha256Hash());
+		if (known.isPresent()) {
+			logger.info("Main: known sample " + sample.getPath() + ", " + known.get());
+			Metrics.getInstance().increment("verdict.cache.hits");
+		} else {
+			Metrics.getInstance().increment("verdict.cache.misses");
+		}
+		return known;
+	}
+	
+	// continue a sample recovered from the journal. Its base doc is already 
+	// indexed, and only the tests it didn't complete are run. 
+	private void resumeSample(SampleFile sample)
+	{
+		logger.info("Main: Resuming " + sample.getPath());
+		sample.setExpectedTests(expectedTests);
+		waitingQueue.put(sample.getEsId(), sample);
+		scheduleDeadline(sample);
+		
+		// it may have completed everything before we went down
+		if (sample.isProcessingFinished()) {
+			checkIfFinishedAllTests(sample);
+			return;
+		}
+		
+		try {
+			runMissingTests(sample);
+		} catch (Exception e) {
+			logger.severe("Main: Resume failed: " + e.getMessage());
+		}
+	}
+	
+	// Dispatch the sample to all controllers it has no result from. 
+	// Doesn't wait for the controllers.
+	private void runMissingTests(SampleFile sample)
+	{
+		analyzers.stream()
+			.filter(c -> sample.getPerformedTest(c.getControllerData().getCheckType()) == null)
+			.forEach((c) -> {
 			CheckType cType = c.getControllerData().getCheckType();
 			MediaType mimeType = sample.getMimeType();
 			boolean supported = c.getControllerData().isTypeSupported(mimeType);
@@ -137,112 +329,163 @@ public class IntelligenceSystem {
 					    " Supported? " + supported);
 			
 			if (supported){
-				runControllerOnSample(c, sample);
+				dispatch(c, sample);
 			}	
 			else{ 
 				// mark the test as 'not supported' on the sample
-				sample.addPerformedTest(new PerformedTest.Builder(cType).
+				completeTest(sample, new PerformedTest.Builder(cType).
 						supported(false).build());
 			}
 						
 		});
-		
-		
-		 
 	}
 	
-	private void runControllerOnSample(EngineController c, SampleFile sample)
+	// Record a test result on the sample, and finish it if it was the last
+	private void completeTest(SampleFile sample, PerformedTest test)
 	{
-		boolean opCompleted = true;
-		PerformedTest.Builder test = 
-				new PerformedTest.Builder(c.getControllerData().getCheckType())
-				.supported(true)
-				.success(true);
-		
-		
-		try{
-			opCompleted = c.getDataOnFile(sample);
-		}catch(FileSubmittionFailedException e){
-			// TODO: something with failure
-			// maybe pass on? or at least log?
-			test.success(false);
-			test.description(e.getMessage());
-		}
-		
-		// mark the file if finished 
-		if (opCompleted) {
-			sample.addPerformedTest(test.build());
-			checkIfFinishedAllTests(sample);
-		}
+		sample.addPerformedTest(test);
+		journal.testDone(sample, test);
+		checkIfFinishedAllTests(sample);
 	}
 	
-	private class EngineEventsHandler implements EngineListener{
-		@Override
-		public void onResponse(Response res){
-			logger.info("Main: Got response from payload. pcap: " + res.getPcap());
+	// Run the analyzer, and record its result when done
+	private void dispatch(SampleAnalyzer analyzer, SampleFile sample)
+	{
+		CheckType cType = analyzer.getControllerData().getCheckType();
+		journal.testStarted(sample, cType);
+		
+		// fail the test if the controller doesn't make it in time, counted 
+		// from when it starts on the sample - not while it waits in the queue
+		RunningTest running = new RunningTest(sample, cType);
+		CompletableFuture<PerformedTest> analysis = 
+				analyzer.analyze(sample, () -> running.started()).toCompletableFuture();
+		running.analysis = analysis;
+		runningTests.computeIfAbsent(sample.getEsId(), id -> new ConcurrentHashMap<>()).put(cType, running);
+		
+		// the only path by which a dispatched test is recorded
+		analysis.whenComplete((result, e) -> {
+			running.done();
+			if (e != null) 
+				logger.log(Level.SEVERE, "Main: " + cType + " analysis failed", e);
 			
-			// a. set the sample status 
-			PerformedTest.Builder test = new PerformedTest.Builder(res.getCheckType());
-			res.getSample().addPerformedTest(test.success(true).build());
+			PerformedTest test = (e == null) ? result : 
+				new PerformedTest.Builder(cType).success(false).description(e.getMessage()).build();
 			
-			// if we have a pcap - pass it through the system
-			res.getPcap().ifPresent(pcap -> {
-				processNewSample(res.getSample(), pcap);
-			});
+			// pass files produced by the test (e.g a pcap) to the pipeline
+			test.getArtifact().ifPresent(artifact -> 
+				pipeline.publish(StageEvent.artifact(sample, cType, artifact)));
 			
-			checkIfFinishedAllTests(res.getSample());
+			completeTest(sample, test);
+		});
+	}
+	
+	// The last resort for a sample - if it's still waiting by then, its 
+	// missing tests fail and it finishes as usual
+	private void scheduleDeadline(SampleFile sample)
+	{
+		Timeout timeout = deadlines.schedule(() -> executor.submit(() -> expireSample(sample)), 
+				Config.getSampleDeadlineMins(), TimeUnit.MINUTES);
+		sampleDeadlines.put(sample.getEsId(), timeout);
+	}
+	
+	private void expireSample(SampleFile sample)
+	{
+		if (!waitingQueue.containsKey(sample.getEsId())) return;
+		
+		logger.warning("Main: sample deadline expired: " + sample.getPath());
+		Metrics.getInstance().increment("deadline.sample.expired");
+		
+		// tests still running are failed through their analysis, so their
+		// results are recorded once only
+		Map<CheckType, RunningTest> running = runningTests.getOrDefault(sample.getEsId(), 
+				Collections.emptyMap());
+		expectedTests.stream()
+			.filter(type -> sample.getPerformedTest(type) == null)
+			.forEach(type -> {
+				RunningTest test = running.get(type);
+				if (test != null) {
+					test.expire("sample deadline expired");
+				} else {
+					completeTest(sample, expired(type, "sample deadline expired"));
+				}
+			});
+	}
+	
+	private static PerformedTest expired(CheckType type, String description)
+	{
+		return new PerformedTest.Builder(type)
+				.success(false)
+				.description(description)
+				.build();
+	}
+	
+	// A test dispatched to a controller, until its analysis completes
+	private class RunningTest
+	{
+		final SampleFile sample;
+		final CheckType type;
+		volatile CompletableFuture<PerformedTest> analysis;
+		volatile Timeout timeout;
+		
+		RunningTest(SampleFile sample, CheckType type)
+		{
+			this.sample = sample;
+			this.type = type;
 		}
-
-		@Override
-		public void onError(SampleFile sample, FileSubmittionFailedException e)
+		
+		// the controller started on the sample, so the test timeout starts
+		void started()
 		{
-			logger.severe("Main: payload error: " + e.getMessage());
-			// TODO: a. set the sample status
-			// b. remove from waiting queue (if finished)
+			timeout = deadlines.schedule(() -> executor.submit(() -> {
+				if (expire("timed out")) {
+					logger.warning("Main: " + type + " timed out on " + sample.getPath());
+					Metrics.getInstance().increment("deadline.test.expired");
+				}
+			}), Config.getControllerTimeoutMins(type), TimeUnit.MINUTES);
 		}
 		
-		void processNewSample(SampleFile parentSample, Path path)
+		// fail the test, unless the analysis has just completed
+		boolean expire(String description)
 		{
-			logger.info("Main: Submitting downloaded PCAP to the system");
-			
-			// new sample with same context.
-			Context ctx = parentSample.getContext();
-			ctx.incRunningStep();
-			
-			FileDetails params = new FileDetails();
-			params.setFileSource("sandbox");
-			SampleFile newSample = new SampleFile(path, Utils.PCAP_MIME, ctx, params);
-			
-			// release events thread
-			executor.submit(() -> processSample(newSample));
+			return analysis.complete(expired(type, description));
 		}
 		
+		void done()
+		{
+			Timeout t = timeout;
+			if (t != null) t.cancel();
+			runningTests.computeIfPresent(sample.getEsId(), (id, tests) -> {
+				tests.remove(type, this);
+				return tests.isEmpty() ? null : tests;
+			});
+		}
 	}
-
+	
 	private void checkIfFinishedAllTests(SampleFile sample)
 	{
-		if (sample.isProcessingFinished()){
+		// only one of the threads completing tests gets here
+		if (sample.tryFinish()){
 			logger.info("Main: -----Finished processing of sample: " + sample.getPath());
 			waitingQueue.remove(sample.getEsId(), sample);
-			
-			// If it is a pcap, we store it on Moloch
-			if (sample.isPcap() && Config.runMolochController()){
-				logger.info("Main: Sending " + sample.getPath() + " to moloch for storage");
-				moloch.submitPcapToMoloch(sample.getPath());
-			}
+			journal.finished(sample);
+			Timeout timeout = sampleDeadlines.remove(sample.getEsId());
+			if (timeout != null) timeout.cancel();
+			if (verdicts != null) verdicts.record(sample);
 			
 			reportGen.addLineToReport(sample);
 			
-			// Move finished file to storage
-			executor.submit(() -> moveFileToStorage(sample.getPath()));
+			// Move finished file to storage, after the stages are done with it
+			pipeline.publish(StageEvent.finished(sample))
+				.thenRun(() -> moveFileToStorage(sample));
 		}
 	}
 	
 	// Moves completed files to storage
-	private void moveFileToStorage(Path source) {
+	private void moveFileToStorage(SampleFile sample) {
 		try {
-			Path dest = savePath.resolve(source.getFileName());
-			Files.move(source, dest, StandardCopyOption.REPLACE_EXISTING);
+			store.store(sample);
+			if (claims != null)
+				claims.release(sample.getPath());
 		} catch (IOException e) {
 			logger.log(Level.INFO, "file copy failed", e);
 		}
@@ -264,11 +507,18 @@ public class IntelligenceSystem {
 		// disables new tasks from being submitted
 		executor.shutdown(); 
 				
-		// shutdown dir watcher
+		// shutdown dir watcher and prepare stage
 		if (dirWatcher != null)
 			 dirWatcher.shutdown();
+		if (claims != null)
+			claims.shutdown();
+		if (preparer != null)
+			preparer.shutdown();
 		
-		// shutdown controllers
+		// stop dispatching, then shutdown controllers
+		bulkheads.parallelStream().forEach(b -> b.shutdown());
+		if (pipeline != null)
+			pipeline.shutdown();
 		controllers.parallelStream().forEach(c -> c.shutdownController());
 				
 		try {
@@ -285,6 +535,17 @@ public class IntelligenceSystem {
 			// Preserve interrupt status
 			Thread.currentThread().interrupt();
 		}
+		
+		deadlines.stop();
+		
+		// send the documents still waiting for a bulk
+		ESHandler.getInstance().shutdown();
+		if (coldStorage != null)
+			coldStorage.shutdown();
+		if (journal != null)
+			journal.close();
+		if (verdicts != null)
+			verdicts.close();
 	}
 	
 	public static void main(String[] args) {
@@ -0,0 +1,123 @@
+package com.verint.main;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.verint.exceptions.FileSubmittionFailedException;
+import com.verint.utils.ErrorLogger;
+import com.verint.utils.Metrics;
+
+/**
+ * Adapts an asynchronous, listener based controller (Payload) to a
+ * SampleAnalyzer. The sample is only submitted on the executor. Its stage
+ * waits in a map, and is completed when the controller reports back.
+ */
+public class ListenerAnalyzer implements SampleAnalyzer, EngineListener
+{
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private final AsyncEngineController controller;
+	private final Executor executor;
+	private final CheckType type;
+
+	// samples waiting for the controller, by es id
+	private Map<String, CompletableFuture<PerformedTest>> waiting = new ConcurrentHashMap<>();
+
+	public ListenerAnalyzer(AsyncEngineController controller, Executor executor)
+	{
+		this.controller = controller;
+		this.executor = executor;
+		this.type = controller.getControllerData().getCheckType();
+
+		controller.addListener(this);
+		Metrics.getInstance().registerGauge("controller." + type.toString().toLowerCase() + ".waiting",
+				() -> waiting.size());
+	}
+
+	@Override
+	public CompletionStage<PerformedTest> analyze(SampleFile sample, Runnable started)
+	{
+		String id = sample.getEsId();
+		CompletableFuture<PerformedTest> result = new CompletableFuture<>();
+		waiting.put(id, result);
+
+		// however it completes (or gets cancelled), stop waiting for it
+		result.whenComplete((test, e) -> waiting.remove(id, result));
+
+		try {
+			executor.execute(() -> submit(sample, result, started));
+		} catch (RejectedExecutionException e) {
+			logger.warning("Main: " + type + " controller is full, not running on " + sample.getPath());
+			result.complete(failed("controller queue is full"));
+		}
+		return result;
+	}
+
+	private void submit(SampleFile sample, CompletableFuture<PerformedTest> result, Runnable started)
+	{
+		if (result.isDone()) return;
+
+		started.run();
+		try {
+			// some samples may be completed right away
+			if (controller.getDataOnFile(sample))
+				result.complete(new PerformedTest.Builder(type).supported(true).success(true).build());
+		} catch (FileSubmittionFailedException e) {
+			result.complete(failed(e.getMessage()));
+		} catch (RuntimeException e) {
+			logger.log(Level.SEVERE, "Main: " + type + " controller failed", e);
+			result.complete(failed(e.getMessage()));
+		}
+	}
+
+	//
+	// EngineListener
+	//
+	@Override
+	public void onResponse(Response res)
+	{
+		logger.info("Main: Got response from " + type + ". pcap: " + res.getPcap());
+
+		CompletableFuture<PerformedTest> result = waiting.get(res.getSample().getEsId());
+		if (result == null) {
+			logger.fine("Main: no sample waiting for response " + res);
+			return;
+		}
+
+		result.complete(new PerformedTest.Builder(type)
+				.supported(true)
+				.success(true)
+				.artifact(res.getPcap().orElse(null))
+				.build());
+	}
+
+	@Override
+	public void onError(SampleFile sample, FileSubmittionFailedException e)
+	{
+		logger.severe("Main: " + type + " error: " + e.getMessage());
+
+		CompletableFuture<PerformedTest> result = waiting.get(sample.getEsId());
+		if (result != null) result.complete(failed(e.getMessage()));
+	}
+
+	private PerformedTest failed(String description)
+	{
+		return new PerformedTest.Builder(type)
+				.supported(true)
+				.success(false)
+				.description(description)
+				.build();
+	}
+
+	@Override
+	public ControllerData getControllerData()
+	{
+		return controller.getControllerData();
+	}
+}
@@ -0,0 +1,64 @@
+package com.verint.main;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.json.JSONObject;
+
+import com.verint.utils.SpillingQueue;
+
+/**
+ * A file that was found, but not yet prepared (hashed, identified) as a
+ * SampleFile.
+ */
+public class PendingSample
+{
+	private final Path path;
+	private final FileDetails details;
+
+	public PendingSample(Path path, FileDetails details)
+	{
+		this.path = path;
+		this.details = details;
+	}
+
+	public Path getPath()
+	{
+		return path;
+	}
+
+	public FileDetails getDetails()
+	{
+		return details;
+	}
+
+	/**
+	 * Codec for keeping pending samples on disk, as a single json line
+	 */
+	public static class Codec implements SpillingQueue.Codec<PendingSample>
+	{
+		@Override
+		public String encode(PendingSample p)
+		{
+			JSONObject json = new JSONObject();
+			json.put("path", p.path.toString());
+			json.put("details", p.details.toJson());
+			return json.toString();
+		}
+
+		@Override
+		public PendingSample decode(String line)
+		{
+			JSONObject json = new JSONObject(line);
+			FileDetails details = new FileDetails();
+			details.loadFromJson(json.getJSONObject("details"));
+			return new PendingSample(Paths.get(json.getString("path")), details);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("PendingSample [path=%s, details=%s]", path, details);
+	}
+}
@@ -1,5 +1,8 @@
 package com.verint.main;
 
+import java.nio.file.Path;
+import java.util.Optional;
+
 /**
  * Represents a test to perform on a sample
  * 
@@ -11,9 +14,11 @@ public class PerformedTest
 	private final boolean success;
 	private final boolean supported;
 	private final String description;
+	private final Path artifact;
 	
 	private PerformedTest(Builder builder)
 	{
+		this.artifact = builder.artifact;
 		this.checkType = builder.checkType;
 		this.success = builder.success;
 		this.description = builder.description;
@@ -26,6 +31,7 @@ public class PerformedTest
 		private boolean success = false;
 		private boolean supported = true;
 		private String description = "";
+		private Path artifact = null;
 		
 		public Builder(CheckType checkType){
 			this.checkType = checkType;
@@ -46,6 +52,12 @@ public class PerformedTest
 			return this;
 		}
 		
+		// a file produced by the test, e.g a pcap
+		public Builder artifact(Path artifact){
+			this.artifact = artifact;
+			return this;
+		}
+		
 		public PerformedTest build(){
 			return new PerformedTest(this);
 		}
@@ -68,6 +80,16 @@ public class PerformedTest
 		return success;
 	}
 	
+	public String getDescription()
+	{
+		return description;
+	}
+	
+	public Optional<Path> getArtifact()
+	{
+		return Optional.ofNullable(artifact);
+	}
+	
 	@Override
 	public String toString()
 	{
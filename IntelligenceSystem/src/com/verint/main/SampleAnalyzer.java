@@ -0,0 +1,48 @@
+package com.verint.main;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+/**
+ * An asynchronous contract for controllers. The result of analysing a
+ * sample is a stage, completed with the performed test - successful or
+ * not - once the engine is done with it. Stages can be composed, timed out
+ * or cancelled the same way for all controllers.
+ *
+ * Existing controllers are used through the adapters, see adapt().
+ */
+public interface SampleAnalyzer
+{
+	/**
+	 * Analyse the sample. Never blocks.
+	 *
+	 * @param sample the sample
+	 * @param started called when the controller starts on the sample, after
+	 * any wait in its queue. Not called if the stage completed before that.
+	 * @return a stage completed with the test result. Engine failures
+	 * complete it with an unsuccessful test, not exceptionally.
+	 */
+	public CompletionStage<PerformedTest> analyze(SampleFile sample, Runnable started);
+
+	/**
+	 * Supply relevant data on the analyzer
+	 */
+	public ControllerData getControllerData();
+
+	/**
+	 * Adapt an existing controller. Blocking controllers are called on the
+	 * given executor. Asynchronous controllers are only submitted on it, and
+	 * their stage is completed by their listener events, so no thread waits
+	 * for them.
+	 *
+	 * @param controller the controller
+	 * @param executor used for calling the controller
+	 */
+	public static SampleAnalyzer adapt(EngineController controller, Executor executor)
+	{
+		if (controller instanceof AsyncEngineController)
+			return new ListenerAnalyzer((AsyncEngineController)controller, executor);
+
+		return new BlockingAnalyzer(controller, executor);
+	}
+}
@@ -0,0 +1,303 @@
+package com.verint.main;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.verint.utils.ErrorLogger;
+import com.verint.utils.Metrics;
+import com.verint.utils.Utils;
+
+/**
+ * Lets several instances share the same files path, so each file is
+ * processed by one of them only.
+ *
+ * An instance claims a file before loading it, by creating a lease file on
+ * the shared claims dir. The lease is written to a temp file first and then
+ * hard linked to its name - the link fails if the file is already claimed.
+ * The owner keeps its leases alive by touching them (heartbeat), and deletes
+ * them once the files were moved to storage.
+ *
+ * A lease not touched for the lease time belongs to a dead instance. Others
+ * steal it by atomically renaming it away (only one rename can succeed), and
+ * process its file again. An owner whose lease was stolen (e.g. it hung for
+ * longer than the lease time) finds out on its next heartbeat. Files are
+ * processed at least once.
+ */
+public class SampleClaims
+{
+	private static final String LEASE_EXT = ".lease";
+
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private final Path claimsPath;
+	private final Path filesPath;
+	private final String nodeId;
+	private final long leaseMillis;
+	private final long heartbeatMillis;
+
+	// leases we hold: lease file to its token
+	private ConcurrentMap<Path, String> held = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+	private Consumer<Path> onTakeover = p -> {};
+
+	/**
+	 * @param claimsPath the leases dir, shared by all instances
+	 * @param filesPath the files path, shared by all instances
+	 * @param nodeId this instance id
+	 * @param leaseMillis time a lease is valid without a heartbeat
+	 * @param heartbeatMillis interval between heartbeats. Must be well
+	 *  below the lease time
+	 */
+	public SampleClaims(Path claimsPath, Path filesPath, String nodeId, long leaseMillis,
+			long heartbeatMillis)
+	{
+		this.claimsPath = claimsPath;
+		this.filesPath = filesPath.toAbsolutePath().normalize();
+		this.nodeId = nodeId;
+		this.leaseMillis = leaseMillis;
+		this.heartbeatMillis = heartbeatMillis;
+
+		Metrics.getInstance().registerGauge("claims.held", () -> held.size());
+	}
+
+	/**
+	 * Start the heartbeats, and the takeover of files of dead instances
+	 *
+	 * @param onTakeover called with the files taken over from dead instances
+	 */
+	public void start(Consumer<Path> onTakeover)
+	{
+		this.onTakeover = onTakeover;
+		logger.info("Main: node " + nodeId + " claiming files on " + claimsPath);
+
+		scheduler.scheduleWithFixedDelay(() -> heartbeat(),
+				heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(() -> takeOverStale(),
+				leaseMillis, leaseMillis / 2, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Try to claim a file for this instance. A stale lease of a dead
+	 * instance is stolen. A lease we already hold (e.g. from before a
+	 * restart) is kept.
+	 *
+	 * @return true if this instance should process the file
+	 */
+	public boolean claim(Path file)
+	{
+		Path lease = leaseOf(file);
+		if (held.containsKey(lease)) return true;
+
+		try {
+			if (create(lease, file)) return true;
+
+			Optional<JSONObject> current = read(lease);
+			if (!current.isPresent()) {
+				// released (or stolen) in between. Try once more
+				return create(lease, file);
+			}
+			if (nodeId.equals(current.get().getString("node"))) {
+				// ours from before a restart. Renew it before it is taken over
+				Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis()));
+				held.put(lease, current.get().getString("token"));
+				return true;
+			}
+			if (isStale(lease) && steal(lease, current.get())) {
+				return create(lease, file);
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Main: cannot claim " + file, e);
+		}
+		return false;
+	}
+
+	/**
+	 * Give up the claim on a file, once it was moved out of the files path
+	 */
+	public void release(Path file)
+	{
+		Path lease = leaseOf(file);
+		if (held.remove(lease) == null) return;
+
+		try {
+			Files.deleteIfExists(lease);
+		} catch (IOException e) {
+			logger.fine("Main: cannot delete lease " + lease + ": " + e.getMessage());
+		}
+	}
+
+	public void shutdown()
+	{
+		// leases are kept - they go stale, and will be taken over, or claimed
+		// again when we restart
+		Utils.shutdownExecutor(scheduler, 5);
+	}
+
+	//
+	// Leases
+	//
+	// The lease of a file is named by its path, relative to the files path
+	private Path leaseOf(Path file)
+	{
+		String relative = filesPath.relativize(file.toAbsolutePath().normalize()).toString();
+		UUID name = UUID.nameUUIDFromBytes(relative.getBytes(StandardCharsets.UTF_8));
+		return claimsPath.resolve(name + LEASE_EXT);
+	}
+
+	// Atomically create the lease. False if it already exists
+	private boolean create(Path lease, Path file) throws IOException
+	{
+		String token = UUID.randomUUID().toString();
+		JSONObject json = new JSONObject()
+				.put("node", nodeId)
+				.put("token", token)
+				.put("path", filesPath.relativize(file.toAbsolutePath().normalize()).toString());
+
+		Path tmp = claimsPath.resolve(lease.getFileName() + "." + token + ".tmp");
+		Files.write(tmp, json.toString().getBytes(StandardCharsets.UTF_8));
+		try {
+			Files.createLink(lease, tmp);
+			held.put(lease, token);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	// Rename the stale lease away. Only one of the instances racing on it
+	// succeeds. If it was renewed or replaced before we got it, we put it back.
+	private boolean steal(Path lease, JSONObject seen) throws IOException
+	{
+		Path tombstone = claimsPath.resolve(lease.getFileName() + "." + UUID.randomUUID() + ".stale");
+		try {
+			Files.move(lease, tombstone, StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+
+		try {
+			Optional<JSONObject> taken = read(tombstone);
+			boolean same = taken.isPresent() &&
+					seen.getString("token").equals(taken.get().getString("token"));
+			if (!same || !isStale(tombstone)) {
+				// the owner woke up, or someone else stole it first
+				try {
+					Files.createLink(lease, tombstone);
+				} catch (FileAlreadyExistsException e) {
+					logger.fine("Main: lease was claimed again: " + lease);
+				}
+				return false;
+			}
+		} finally {
+			Files.deleteIfExists(tombstone);
+		}
+
+		logger.info("Main: took over lease of node " + seen.getString("node") +
+				" on " + seen.getString("path"));
+		Metrics.getInstance().increment("claims.stolen");
+		return true;
+	}
+
+	private boolean isStale(Path lease) throws IOException
+	{
+		try {
+			long age = System.currentTimeMillis() - Files.getLastModifiedTime(lease).toMillis();
+			return age > leaseMillis;
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+
+	private Optional<JSONObject> read(Path lease) throws IOException
+	{
+		try {
+			return Optional.of(new JSONObject(new String(Files.readAllBytes(lease),
+					StandardCharsets.UTF_8)));
+		} catch (NoSuchFileException e) {
+			return Optional.empty();
+		} catch (JSONException e) {
+			// leases are linked only after they are fully written
+			logger.warning("Main: corrupted lease " + lease + ": " + e.getMessage());
+			return Optional.empty();
+		}
+	}
+
+	//
+	// Background
+	//
+	// Renew our leases. Drop the ones we lost, or whose files are gone
+	private void heartbeat()
+	{
+		FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+		held.forEach((lease, token) -> {
+			try {
+				Optional<JSONObject> current = read(lease);
+				if (!current.isPresent() || !token.equals(current.get().getString("token"))) {
+					logger.warning("Main: lost lease " + lease + ", file may be processed twice");
+					Metrics.getInstance().increment("claims.lost");
+					held.remove(lease, token);
+					return;
+				}
+				if (Files.notExists(filesPath.resolve(current.get().getString("path")))) {
+					held.remove(lease, token);
+					Files.deleteIfExists(lease);
+					return;
+				}
+				Files.setLastModifiedTime(lease, now);
+			} catch (IOException e) {
+				logger.fine("Main: heartbeat failed on " + lease + ": " + e.getMessage());
+			}
+		});
+	}
+
+	// Take over the files of dead instances
+	private void takeOverStale()
+	{
+		try (DirectoryStream<Path> leases = Files.newDirectoryStream(claimsPath, "*" + LEASE_EXT)) {
+			for (Path lease : leases) {
+				if (held.containsKey(lease) || !isStale(lease)) continue;
+
+				Optional<JSONObject> stale = read(lease);
+				if (!stale.isPresent()) continue;
+
+				Path file = filesPath.resolve(stale.get().getString("path"));
+				if (Files.notExists(file)) {
+					// finished, the owner died before releasing it
+					if (steal(lease, stale.get())) logger.fine("Main: removed lease of " + file);
+					continue;
+				}
+				if (steal(lease, stale.get()) && create(lease, file)) {
+					onTakeover.accept(file);
+				}
+			}
+		} catch (IOException e) {
+			logger.log(Level.INFO, "Main: cannot scan leases: " + e.getMessage());
+		} catch (Exception e) {
+			// keep the scheduled task alive
+			logger.log(Level.WARNING, "Main: lease takeover failed", e);
+		}
+	}
+}
@@ -6,12 +6,16 @@ import java.nio.file.Path;
 import java.time.Instant;
 import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import org.apache.tika.mime.MediaType;
 
 import com.verint.main.FileDetails.Maliciousness;
 import com.verint.utils.ErrorLogger;
+import com.verint.utils.FileHashes;
+import com.verint.utils.Metrics;
+import com.verint.utils.MimeDetector;
 import com.verint.utils.Utils;
 
 /**
@@ -22,8 +26,10 @@ import com.verint.utils.Utils;
 public class SampleFile {
 	private static final String PARAMS_PATH = "file_params";
 	private static final String PARAMS_SUFFIX = ".txt";
+	private static final FileHashes EMPTY_HASHES = new FileHashes("", "", null, 0);
 	
 	private Logger logger = ErrorLogger.getInstance().getLogger();
+	private static Metrics metrics = Metrics.getInstance();
 	
 	// The file path
 	private Path path;
@@ -43,15 +49,17 @@ public class SampleFile {
 	// Externally supplied parameters
 	private FileDetails fileDetails;
 	
-	// The expected tests this sample should follow. 
-	private EnumSet<CheckType> expectedTests = EnumSet.allOf(CheckType.class); 
-	
-	// The list of tests performed on this sample
-	private EnumMap<CheckType, PerformedTest> performedTests = new EnumMap<>(CheckType.class);
+	// The tests performed on this sample, out of the expected ones. 
+	// Updated from controllers threads.
+	private final CompletionTracker tests = new CompletionTracker();
 	
 	// The file mime type
 	private MediaType mimeType; 
 	
+	// The sample docs holding results of tests we didn't run (known sample),
+	// by test
+	private final Map<CheckType, String> resultsFrom = new EnumMap<>(CheckType.class);
+	
 	// TODO:?
 	private int attempts = 0;
 	
@@ -76,45 +84,67 @@ public class SampleFile {
 		// default settings
 		this.context = ctx;
 
-		this.sha256Hash = createSha256Hash().toLowerCase(); // ES likes lower case
+		// hash the file once, for all digests
+		long start = System.nanoTime();
+		FileHashes hashes = createHashes();
+		metrics.recordTime("prepare.hash", start);
+		this.sha256Hash = hashes.getSha256().toLowerCase(); // ES likes lower case
 		
-		this.md5Hash = createMd5Hash().toLowerCase(); // ES likes lower case
+		this.md5Hash = hashes.getMd5().toLowerCase(); // ES likes lower case
 		
 		this.esId = createEsId();
 		
 		this.mimeType = type;
 		if (mimeType == MediaType.EMPTY) {
-			mimeType = calcMimeType();
+			start = System.nanoTime();
+			mimeType = calcMimeType(hashes);
+			metrics.recordTime("prepare.mime", start);
 		}
 		
 		this.fileDetails = details;
 		
 		// Check if there are more specific params for this file
+		start = System.nanoTime();
 		loadSpecificDetails();
+		metrics.recordTime("prepare.params", start);
+	}
+	
+	
+	// Used when restoring a known sample, without reading the file again
+	private SampleFile(Path path, String sha256Hash, String md5Hash, String esId, 
+			MediaType type, Context ctx, FileDetails details)
+	{
+		this.path = path;
+		this.context = ctx;
+		this.sha256Hash = sha256Hash;
+		this.md5Hash = md5Hash;
+		this.esId = esId;
+		this.mimeType = type;
+		this.fileDetails = details;
 	}
 	
+	/**
+	 * Restore a sample that was already prepared (e.g from the journal). 
+	 * The file is not hashed or identified again.
+	 */
+	public static SampleFile restore(Path path, String sha256Hash, String md5Hash, 
+			String esId, MediaType type, Context ctx, FileDetails details)
+	{
+		return new SampleFile(path, sha256Hash, md5Hash, esId, type, ctx, details);
+	}
 	
 	public void setExpectedTests(EnumSet<CheckType> expectedTests)
 	{
-		this.expectedTests = expectedTests;
+		tests.setExpected(expectedTests);
 	}
 
 	
-	private final String createSha256Hash() {
+	private final FileHashes createHashes() {
 		try {
-			return Utils.generateSHA256Hash(path);
+			return Utils.generateHashes(path);
 		} catch (IOException e) {
 			ErrorLogger.getInstance().getLogger().severe("hash problem");
-			return "";
-		}
-	}
-	
-	private final String createMd5Hash() {
-		try {
-			return Utils.generateMD5Hash(path);
-		} catch (IOException e) {
-			ErrorLogger.getInstance().getLogger().severe("md5 hash problem");
-			return "";
+			return EMPTY_HASHES;
 		}
 	}
 
@@ -168,6 +198,22 @@ public class SampleFile {
 		return esId;
 	}
 	
+	public synchronized Map<CheckType, String> getResultsFrom()
+	{
+		return new EnumMap<>(resultsFrom);
+	}
+	
+	// The results of the test are in the given sample doc
+	public synchronized void setResultsFrom(CheckType type, String esId)
+	{
+		resultsFrom.put(type, esId);
+	}
+	
+	public boolean isForceRescan()
+	{
+		return (fileDetails != null) && fileDetails.isRescan();
+	}
+	
 	public MediaType getMimeType()
 	{
 		return mimeType;
@@ -175,32 +221,41 @@ public class SampleFile {
 	
 	public void addPerformedTest(PerformedTest test)
 	{
-		performedTests.put(test.getCheckType(), test);
+		tests.record(test);
 	}
 	
 	public PerformedTest getPerformedTest(CheckType type)
 	{
-		return performedTests.get(type);
+		return tests.get(type);
 	}
 	
 	public boolean isProcessingFinished()
 	{
 		// Check if all expected tests were performed
-		boolean result = performedTests.keySet().containsAll(expectedTests);
-		
-		logger.info("-----------------------------------------");
-		logger.info("Main: checking if finished with file " + path);
-		logger.fine("Main: STATUS: " + performedTests + " Expected: " + expectedTests);
-		logger.fine("Returning: " + result);
-		
+		return tests.isComplete();
+	}
+	
+	/**
+	 * Mark the sample as finished, if all expected tests were performed.
+	 * 
+	 * @return true once only, for the caller that should finish the sample
+	 */
+	public boolean tryFinish()
+	{
+		boolean result = tests.tryFinish();
+		logger.fine("Main: " + path + " finished? " + result + " " + tests);
 		return result;
 	}
 	
-	private final MediaType calcMimeType()
+	// detect from the header read while hashing, unless hashing failed
+	private final MediaType calcMimeType(FileHashes hashes)
 	{
 		try {
-			String type = Utils.identifyFileType(path);
-			return MediaType.parse(type);
+			if (hashes == EMPTY_HASHES) {
+				return MediaType.parse(Utils.identifyFileType(path));
+			}
+			return MimeDetector.getInstance().detect(hashes.getHeader(),
+					path.getFileName().toString(), sha256Hash);
 		
 		} catch (IOException e) {
 			logger.fine("SampleFile: cannot detect mime type");
@@ -0,0 +1,287 @@
+package com.verint.main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.tika.mime.MediaType;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.verint.utils.ErrorLogger;
+import com.verint.utils.Metrics;
+
+/**
+ * A write-ahead journal of samples lifecycle: admitted, test started, test
+ * done and finished. Lets us rebuild the samples that were in flight when
+ * the system went down, and resume only their missing tests.
+ *
+ * Events are queued by the callers and written by a single writer thread,
+ * which syncs the file to disk once per batch - so many events share a
+ * single fsync. On startup the journal is compacted to the in flight
+ * samples only.
+ */
+public class SampleJournal
+{
+	private static final String JOURNAL_FILE = "samples.journal";
+
+	// Event types
+	private static final String ADMITTED = "A";
+	private static final String TEST_STARTED = "S";
+	private static final String TEST_DONE = "D";
+	private static final String FINISHED = "F";
+
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private final Path journalFile;
+	private final long syncMillis;
+
+	// events waiting for the writer thread
+	private BlockingQueue<String> pending = new LinkedBlockingQueue<>();
+	private volatile Thread writerThread;
+	private volatile boolean stopFlag = false;
+
+	/**
+	 * @param dir the journal dir
+	 * @param syncMillis max time the writer waits to batch events
+	 */
+	public SampleJournal(Path dir, long syncMillis)
+	{
+		this.journalFile = dir.resolve(JOURNAL_FILE);
+		this.syncMillis = syncMillis;
+
+		Metrics.getInstance().registerGauge("journal.pending", () -> pending.size());
+	}
+
+	/**
+	 * Read the journal and rebuild the samples that did not finish, with
+	 * the tests they completed. Then compact the journal and start writing.
+	 * Must be called once, before any event is written.
+	 *
+	 * @return the samples that were in flight
+	 */
+	public List<SampleFile> recoverAndOpen() throws IOException
+	{
+		Map<String, JSONObject> admitted = new LinkedHashMap<>();
+		Map<String, List<JSONObject>> done = new LinkedHashMap<>();
+
+		if (Files.exists(journalFile)) {
+			readJournal(admitted, done);
+		}
+
+		// rebuild the samples, and rewrite the journal with them only
+		List<SampleFile> samples = new ArrayList<>();
+		Path tmp = journalFile.resolveSibling(JOURNAL_FILE + ".tmp");
+		try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			for (JSONObject a : admitted.values()) {
+				SampleFile sample = restoreSample(a);
+				if (Files.notExists(sample.getPath())) {
+					logger.info("Main: journaled sample no longer exists: " + sample.getPath());
+					continue;
+				}
+
+				out.write(a.toString());
+				out.newLine();
+				for (JSONObject d : done.getOrDefault(sample.getEsId(), new ArrayList<>())) {
+					sample.addPerformedTest(restoreTest(d));
+					out.write(d.toString());
+					out.newLine();
+				}
+				samples.add(sample);
+			}
+		}
+		Files.move(tmp, journalFile, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		logger.info("Main: recovered " + samples.size() + " in flight samples from journal");
+		startWriter();
+		return samples;
+	}
+
+	//
+	// Events
+	//
+	public void admitted(SampleFile sample)
+	{
+		JSONObject json = event(ADMITTED, sample);
+		json.put("path", sample.getPath().toString());
+		json.put("sha", sample.getSha256Hash());
+		json.put("md5", sample.getMd5Hash());
+		json.put("mime", sample.getMimeType().toString());
+		json.put("ctx", sample.getContext().getContextId().toString());
+		json.put("desc", sample.getContext().getDescription());
+		json.put("step", sample.getContext().getRunningStep());
+		json.put("details", sample.getFileDetails().toJson());
+		Map<CheckType, String> from = sample.getResultsFrom();
+		if (!from.isEmpty()) json.put("from", new JSONObject(from));
+		write(json);
+	}
+
+	public void testStarted(SampleFile sample, CheckType type)
+	{
+		write(event(TEST_STARTED, sample).put("t", type.toString()));
+	}
+
+	public void testDone(SampleFile sample, PerformedTest test)
+	{
+		write(event(TEST_DONE, sample)
+				.put("t", test.getCheckType().toString())
+				.put("sup", test.isSupported())
+				.put("ok", test.isSuccess())
+				.put("msg", test.getDescription()));
+	}
+
+	public void finished(SampleFile sample)
+	{
+		write(event(FINISHED, sample));
+	}
+
+	/**
+	 * Write whatever is pending and close the journal
+	 */
+	public void close()
+	{
+		stopFlag = true;
+		if (writerThread == null) return;
+
+		try {
+			writerThread.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			logger.finer("Main: interrupted waiting for journal writer");
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private JSONObject event(String type, SampleFile sample)
+	{
+		return new JSONObject().put("e", type).put("id", sample.getEsId());
+	}
+
+	private void write(JSONObject event)
+	{
+		// before the journal is open (or if it failed to open) we don't journal
+		if (writerThread != null && !stopFlag) pending.add(event.toString());
+	}
+
+	//
+	// Writer
+	//
+	private void startWriter()
+	{
+		writerThread = new Thread(() -> writeLoop(), "sample-journal");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	// Writes batches of events, one fsync per batch
+	private void writeLoop()
+	{
+		List<String> batch = new ArrayList<>();
+		try (FileOutputStream fileOut = new FileOutputStream(journalFile.toFile(), true);
+			 BufferedWriter out = new BufferedWriter(
+					 new OutputStreamWriter(fileOut, StandardCharsets.UTF_8))) {
+
+			while (!(stopFlag && pending.isEmpty())) {
+				String first = pending.poll(syncMillis, TimeUnit.MILLISECONDS);
+				if (first == null) continue;
+
+				batch.add(first);
+				pending.drainTo(batch);
+				for (String line : batch) {
+					out.write(line);
+					out.newLine();
+				}
+				out.flush();
+				fileOut.getChannel().force(false);
+				batch.clear();
+			}
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Main: journal write failed, journaling stopped", e);
+		} catch (InterruptedException e) {
+			logger.fine("Main: journal writer interrupted");
+		}
+	}
+
+	//
+	// Recovery
+	//
+	private void readJournal(Map<String, JSONObject> admitted, Map<String, List<JSONObject>> done)
+			throws IOException
+	{
+		try (BufferedReader in = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				JSONObject json;
+				try {
+					json = new JSONObject(line);
+				} catch (JSONException e) {
+					// a torn write on crash. Only the last line can be torn.
+					logger.info("Main: skipping corrupted journal line");
+					continue;
+				}
+
+				String id = json.getString("id");
+				switch (json.getString("e")) {
+				case ADMITTED:
+					admitted.put(id, json);
+					break;
+				case TEST_DONE:
+					done.computeIfAbsent(id, k -> new ArrayList<>()).add(json);
+					break;
+				case FINISHED:
+					admitted.remove(id);
+					done.remove(id);
+					break;
+				default:
+					// started tests are resumed anyway, nothing to keep
+					break;
+				}
+			}
+		}
+	}
+
+	private SampleFile restoreSample(JSONObject json)
+	{
+		Context ctx = new Context(UUID.fromString(json.getString("ctx")),
+				json.optString("desc"), json.optInt("step", 1));
+
+		FileDetails details = new FileDetails();
+		details.loadFromJson(json.getJSONObject("details"));
+
+		MediaType mime = MediaType.parse(json.getString("mime"));
+		SampleFile sample = SampleFile.restore(Paths.get(json.getString("path")), 
+				json.getString("sha"), json.getString("md5"), json.getString("id"),
+				(mime != null) ? mime : MediaType.EMPTY, ctx, details);
+		JSONObject from = json.optJSONObject("from");
+		if (from != null) {
+			from.keySet().forEach(t -> sample.setResultsFrom(CheckType.valueOf(t), from.getString(t)));
+		}
+		return sample;
+	}
+
+	private PerformedTest restoreTest(JSONObject json)
+	{
+		return new PerformedTest.Builder(CheckType.valueOf(json.getString("t")))
+				.supported(json.getBoolean("sup"))
+				.success(json.getBoolean("ok"))
+				.description(json.optString("msg"))
+				.build();
+	}
+}
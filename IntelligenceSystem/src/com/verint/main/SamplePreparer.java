@@ -0,0 +1,184 @@
+package com.verint.main;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.verint.utils.Config;
+import com.verint.utils.ErrorLogger;
+import com.verint.utils.Metrics;
+import com.verint.utils.SpillingQueue;
+import com.verint.utils.Utils;
+
+/**
+ * The prepare stage, between the dir watcher and the main loop. Turns raw
+ * paths into SampleFiles (hashing, mime detection, params loading) on a
+ * bounded pool of workers, and hands them to the files queue.
+ *
+ * Files waiting for preparation are kept in a spilling queue - a window of
+ * them in memory and the rest on disk, so big drops are never rejected and
+ * do not fill the heap. The files queue is bounded, so a slow main loop
+ * slows down the workers.
+ */
+public class SamplePreparer
+{
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+	private Metrics metrics = Metrics.getInstance();
+
+	// files waiting for preparation. Unbounded, overflow is on disk
+	private final BlockingQueue<PendingSample> pendingQueue;
+
+	// prepared samples, consumed by the main loop
+	private final BlockingQueue<SampleFile> filesQueue;
+
+	private final ExecutorService workers;
+	private final int numWorkers;
+	private AtomicInteger inProgress = new AtomicInteger();
+	private volatile boolean stopFlag = false;
+
+	public SamplePreparer(BlockingQueue<SampleFile> filesQueue)
+	{
+		this(filesQueue, Config.getPrepareThreads(), Config.getPrepareQueueSize());
+	}
+
+	/**
+	 * @param filesQueue the queue to put prepared samples on
+	 * @param numWorkers number of preparing threads
+	 * @param memorySize number of waiting files to keep in memory
+	 */
+	public SamplePreparer(BlockingQueue<SampleFile> filesQueue, int numWorkers, int memorySize)
+	{
+		this.filesQueue = filesQueue;
+		this.numWorkers = numWorkers;
+		this.pendingQueue = createPendingQueue(memorySize);
+		this.workers = Executors.newFixedThreadPool(numWorkers);
+
+		metrics.registerGauge("prepare.queue.depth", () -> pendingQueue.size());
+		metrics.registerGauge("prepare.in.progress", () -> inProgress.get());
+		metrics.registerGauge("files.queue.depth", () -> filesQueue.size());
+	}
+	
+	private BlockingQueue<PendingSample> createPendingQueue(int memorySize)
+	{
+		try {
+			SpillingQueue<PendingSample> queue = new SpillingQueue<>(memorySize, 
+					Utils.getPath(Config.getSpillPath()), "pending", new PendingSample.Codec());
+			metrics.registerGauge("prepare.queue.spilled", () -> queue.spilledSize());
+			return queue;
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Main: cannot create spill queue, using memory only", e);
+			return new LinkedBlockingQueue<>();
+		}
+	}
+
+	public void start()
+	{
+		logger.info("Main: Starting " + numWorkers + " sample preparation workers");
+		for (int i = 0; i < numWorkers; i++) {
+			workers.submit(() -> prepareLoop());
+		}
+	}
+
+	/**
+	 * Queue a file for preparation. Never blocks. A file the queue rejects
+	 * (cannot spill it) stays on the files path, and is loaded on the next
+	 * startup scan.
+	 *
+	 * @param path the file
+	 * @param details the file parameters
+	 */
+	public void submit(Path path, FileDetails details)
+	{
+		logger.fine("Main: adding file to queue: " + path);
+		if (!pendingQueue.offer(new PendingSample(path, details))) {
+			logger.severe("Main: cannot queue " + path + ", left for the next startup");
+			metrics.increment("prepare.rejected");
+		}
+	}
+
+	/**
+	 * Queue a batch of files for preparation. Never blocks.
+	 */
+	public void submitAll(List<PendingSample> batch)
+	{
+		if (batch.isEmpty()) return;
+
+		logger.fine("Main: adding " + batch.size() + " files to queue");
+		try {
+			pendingQueue.addAll(batch);
+		} catch (IllegalStateException e) {
+			logger.severe("Main: cannot queue some of " + batch.size() + " files, left for the " +
+					"next startup");
+			metrics.increment("prepare.rejected");
+		}
+	}
+
+	public int getPendingCount()
+	{
+		return pendingQueue.size() + inProgress.get();
+	}
+
+	// Each worker takes pending files and prepares them, until stopped
+	private void prepareLoop()
+	{
+		while (!stopFlag) {
+			PendingSample pending;
+			try {
+				pending = pendingQueue.take();
+			} catch (InterruptedException e) {
+				logger.fine("Main: prepare worker interrupted");
+				continue;
+			}
+
+			inProgress.incrementAndGet();
+			try {
+				SampleFile sample = prepare(pending);
+				if (sample != null) filesQueue.put(sample);
+			} catch (InterruptedException e) {
+				logger.fine("Main: prepare worker interrupted on put");
+			} catch (Exception e) {
+				// keep the worker alive
+				logger.log(Level.SEVERE, "Main: failed to prepare " + pending.getPath(), e);
+				metrics.increment("prepare.failed");
+			} finally {
+				inProgress.decrementAndGet();
+			}
+		}
+	}
+
+	private SampleFile prepare(PendingSample pending)
+	{
+		Path path = pending.getPath();
+
+		// it could have been moved or deleted while waiting
+		if (Files.notExists(path)) {
+			logger.info("Main: file no longer exists: " + path);
+			return null;
+		}
+
+		long start = System.nanoTime();
+		SampleFile sample = new SampleFile(path, pending.getDetails());
+		metrics.recordTime("prepare.total", start);
+		metrics.increment("prepare.samples");
+
+		return sample;
+	}
+
+	public void shutdown()
+	{
+		stopFlag = true;
+		workers.shutdownNow();
+		
+		// the backlog is found again by scanning the files dir on startup
+		if (pendingQueue instanceof SpillingQueue)
+			((SpillingQueue<PendingSample>)pendingQueue).close();
+	}
+}
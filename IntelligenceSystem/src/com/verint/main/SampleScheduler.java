@@ -0,0 +1,346 @@
+package com.verint.main;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.verint.main.FileDetails.Maliciousness;
+import com.verint.utils.Config;
+import com.verint.utils.Metrics;
+
+/**
+ * The queue of prepared samples, waiting for the controllers. Instead of
+ * FIFO, samples are taken fairly across their sources, so a single file
+ * from an analyst does not wait behind a bulk VirusTotal pull.
+ *
+ * Each source is a class with its own queue and weight. Classes are served
+ * by stride scheduling: the non-empty class that used the least of its
+ * share goes next, and a sample costs 1/weight of it. MALICIOUS samples go
+ * first in their class, and cost less of its share. Optionally, pcaps in a
+ * class are taken smallest first.
+ */
+public class SampleScheduler extends AbstractQueue<SampleFile> implements BlockingQueue<SampleFile>
+{
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	private final int capacity;
+	private final Map<String, Integer> weights;
+	private final int maliciousBoost;
+	private final boolean pcapShortestFirst;
+
+	// classes by source, in order of creation
+	private final Map<String, SourceClass> classes = new LinkedHashMap<>();
+	private int count = 0;
+	private long seq = 0;
+	
+	// the pass of the last served class
+	private double virtualTime = 0;
+
+	public SampleScheduler()
+	{
+		this(Config.getSchedulerCapacity(), Config.getSchedulerWeights(),
+				Config.getMaliciousBoost(), Config.isPcapShortestFirst());
+	}
+
+	/**
+	 * @param capacity max samples waiting, over all classes
+	 * @param weights the share of each source (lower case). Others get 1.
+	 * @param maliciousBoost MALICIOUS samples cost 1/boost of a sample
+	 * @param pcapShortestFirst take smaller pcaps first, in each class
+	 */
+	public SampleScheduler(int capacity, Map<String, Integer> weights, int maliciousBoost,
+			boolean pcapShortestFirst)
+	{
+		this.capacity = capacity;
+		this.weights = weights;
+		this.maliciousBoost = Math.max(maliciousBoost, 1);
+		this.pcapShortestFirst = pcapShortestFirst;
+	}
+
+	//
+	// Producers
+	//
+	@Override
+	public boolean offer(SampleFile sample)
+	{
+		lock.lock();
+		try {
+			if (count >= capacity) return false;
+			enqueue(sample);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(SampleFile sample) throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try {
+			while (count >= capacity) notFull.await();
+			enqueue(sample);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(SampleFile sample, long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count >= capacity) {
+				if (nanos <= 0) return false;
+				nanos = notFull.awaitNanos(nanos);
+			}
+			enqueue(sample);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//
+	// Consumers
+	//
+	@Override
+	public SampleFile poll()
+	{
+		lock.lock();
+		try {
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public SampleFile take() throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try {
+			SampleFile sample;
+			while ((sample = dequeue()) == null) notEmpty.await();
+			return sample;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public SampleFile poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			SampleFile sample;
+			while ((sample = dequeue()) == null) {
+				if (nanos <= 0) return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return sample;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public SampleFile peek()
+	{
+		lock.lock();
+		try {
+			SourceClass next = nextClass();
+			return (next != null) ? next.queue.peek().sample : null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super SampleFile> c)
+	{
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super SampleFile> c, int maxElements)
+	{
+		lock.lock();
+		try {
+			int n = 0;
+			SampleFile sample;
+			while (n < maxElements && (sample = dequeue()) != null) {
+				c.add(sample);
+				n++;
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//
+	// State
+	//
+	@Override
+	public int size()
+	{
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity()
+	{
+		lock.lock();
+		try {
+			return capacity - count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Iterates over a snapshot of the waiting samples, not in order
+	 */
+	@Override
+	public Iterator<SampleFile> iterator()
+	{
+		lock.lock();
+		try {
+			List<SampleFile> all = new ArrayList<>(count);
+			classes.values().forEach(c -> c.queue.forEach(e -> all.add(e.sample)));
+			return all.iterator();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//
+	// Helpers - called under lock
+	//
+	private void enqueue(SampleFile sample)
+	{
+		String source = sample.getSource().toLowerCase();
+		SourceClass c = classes.computeIfAbsent(source, s -> newClass(s));
+
+		// a class that was idle does not get credit for the time it was idle
+		if (c.queue.isEmpty()) c.pass = Math.max(c.pass, virtualTime);
+
+		c.queue.add(new Entry(sample, seq++));
+		count++;
+		notEmpty.signal();
+	}
+
+	private SampleFile dequeue()
+	{
+		SourceClass c = nextClass();
+		if (c == null) return null;
+
+		Entry e = c.queue.poll();
+		virtualTime = c.pass;
+		boolean boosted = e.sample.getMaliciousness() == Maliciousness.MALICIOUS;
+		c.pass += (boosted ? 1.0 / maliciousBoost : 1.0) / c.weight;
+		count--;
+		notFull.signal();
+		return e.sample;
+	}
+
+	// the non-empty class that used the least of its share
+	private SourceClass nextClass()
+	{
+		SourceClass next = null;
+		for (SourceClass c : classes.values()) {
+			if (c.queue.isEmpty()) continue;
+			if (next == null || c.pass < next.pass) next = c;
+		}
+		return next;
+	}
+
+	private SourceClass newClass(String source)
+	{
+		SourceClass c = new SourceClass(weights.getOrDefault(source, 1));
+		Metrics.getInstance().registerGauge("scheduler." + source + ".depth", () -> classDepth(c));
+		return c;
+	}
+
+	private int classDepth(SourceClass c)
+	{
+		lock.lock();
+		try {
+			return c.queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// malicious first, then (optionally) smaller pcaps, then FIFO
+	private Comparator<Entry> entryOrder()
+	{
+		Comparator<Entry> order = Comparator.comparing(
+				e -> e.sample.getMaliciousness() != Maliciousness.MALICIOUS);
+		if (pcapShortestFirst) {
+			order = order.thenComparingLong(e -> e.pcapSize);
+		}
+		return order.thenComparingLong(e -> e.seq);
+	}
+
+	private class SourceClass
+	{
+		final int weight;
+		final PriorityQueue<Entry> queue = new PriorityQueue<>(entryOrder());
+
+		// share used so far, in 1/weight units
+		double pass = 0;
+
+		SourceClass(int weight)
+		{
+			this.weight = Math.max(weight, 1);
+		}
+	}
+
+	private class Entry
+	{
+		final SampleFile sample;
+		final long seq;
+
+		// 0 for non pcaps, so they keep their FIFO order
+		final long pcapSize;
+
+		Entry(SampleFile sample, long seq)
+		{
+			this.sample = sample;
+			this.seq = seq;
+			this.pcapSize = (pcapShortestFirst && sample.isPcap()) ? sizeOf(sample) : 0;
+		}
+	}
+
+	private static long sizeOf(SampleFile sample)
+	{
+		try {
+			return Files.size(sample.getPath());
+		} catch (IOException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+}
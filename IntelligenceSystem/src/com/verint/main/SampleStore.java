@@ -0,0 +1,283 @@
+package com.verint.main;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.verint.utils.ColdStorage;
+import com.verint.utils.ErrorLogger;
+import com.verint.utils.FileHasher;
+import com.verint.utils.Metrics;
+
+/**
+ * Storage of processed samples, by content. A sample is kept once per
+ * sha256, however many times (and by whatever names) it was submitted.
+ *
+ * objects/ab/cd/[sha256]       the content
+ * objects/ab/cd/[sha256].json  metadata: hashes, mime, names, sources, es ids
+ * names/ef/gh/[name]/[sha256]  a hard link to the content, for each name
+ *
+ * The two level fan-out (by the sha256, and by a hash of the name for the
+ * names index) keeps every dir small, so storing and looking up a sample
+ * are a few path operations, at any number of samples.
+ *
+ * Old objects are compressed by the cold storage, into [sha256].gz. Their
+ * name links are moved to the compressed file.
+ */
+public class SampleStore
+{
+	private static final String OBJECTS = "objects";
+	private static final String NAMES = "names";
+	private static final String META_EXT = ".json";
+
+	// metadata updates of the same sha are serialized on these
+	private static final int LOCK_STRIPES = 64;
+
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private final Path objectsPath;
+	private final Path namesPath;
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	public SampleStore(Path root) throws IOException
+	{
+		this.objectsPath = Files.createDirectories(root.resolve(OBJECTS));
+		this.namesPath = Files.createDirectories(root.resolve(NAMES));
+		for (int i = 0; i < LOCK_STRIPES; i++) locks[i] = new Object();
+	}
+
+	/**
+	 * Move a processed sample into the store. If the same content is
+	 * already stored, the file is just deleted, and the name and metadata
+	 * are added to the existing object.
+	 *
+	 * @return the stored object
+	 */
+	public Path store(SampleFile sample) throws IOException
+	{
+		Path source = sample.getPath();
+		String sha = sample.getSha256Hash();
+		if (sha == null || sha.isEmpty()) {
+			sha = FileHasher.hash(source).getSha256().toLowerCase();
+		}
+
+		Path object = objectOf(sha);
+		long size = Files.size(source);
+		String name = source.getFileName().toString();
+		boolean isNew;
+		synchronized (lockOf(sha)) {
+			isNew = moveIn(source, object);
+			updateMetadata(sample, sha, name, size);
+			linkName(name, sha, Files.exists(object) ? object : ColdStorage.compressed(object));
+		}
+		Metrics.getInstance().increment(isNew ? "store.objects.new" : "store.objects.dedup");
+
+		logger.fine("Main: stored " + name + " as " + sha + (isNew ? "" : " (dedup)"));
+		return object;
+	}
+
+	/**
+	 * The stored object of a hash, if there is one. A compressed object is
+	 * restored first, so it can be analysed again.
+	 */
+	public Optional<Path> lookup(String sha256) throws IOException
+	{
+		String sha = sha256.toLowerCase();
+		Path object = objectOf(sha);
+		synchronized (lockOf(sha)) {
+			if (!ColdStorage.exists(object)) return Optional.empty();
+			return Optional.of(ColdStorage.restore(object));
+		}
+	}
+
+	/**
+	 * Read the stored object of a hash, compressed or not
+	 */
+	public InputStream open(String sha256) throws IOException
+	{
+		return ColdStorage.open(objectOf(sha256.toLowerCase()));
+	}
+
+	/**
+	 * Compress the objects not modified for a while, on the given cold
+	 * storage. Metadata files are left as is.
+	 */
+	public void addTo(ColdStorage cold)
+	{
+		cold.addDir(objectsPath, f -> !f.getFileName().toString().contains("."),
+				object -> compress(object));
+	}
+
+	/**
+	 * The hashes of all samples stored under the given file name
+	 */
+	public List<String> lookupName(String name) throws IOException
+	{
+		List<String> hashes = new ArrayList<>();
+		Path dir = nameDir(name);
+		if (Files.notExists(dir)) return hashes;
+
+		try (DirectoryStream<Path> links = Files.newDirectoryStream(dir)) {
+			links.forEach(l -> hashes.add(l.getFileName().toString()));
+		}
+		return hashes;
+	}
+
+	/**
+	 * The metadata of a stored hash, if there is one
+	 */
+	public Optional<JSONObject> metadata(String sha256) throws IOException
+	{
+		return readMetadata(metaOf(objectOf(sha256.toLowerCase())));
+	}
+
+	//
+	// Helpers
+	//
+	// Put the file on its object path, unless the content is already there.
+	// True if the object is new. Called under the sha lock.
+	private boolean moveIn(Path source, Path object) throws IOException
+	{
+		Files.createDirectories(object.getParent());
+		if (ColdStorage.exists(object)) {
+			Files.delete(source);
+			return false;
+		}
+
+		// link to the final name only when complete, so a failed copy never
+		// leaves a partial object
+		Path tmp = object.resolveSibling(object.getFileName() + "." + UUID.randomUUID() + ".tmp");
+		Files.move(source, tmp);
+		try {
+			Files.createLink(object, tmp);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			// stored at the same time by another instance
+			return false;
+		} finally {
+			Files.delete(tmp);
+		}
+	}
+
+	// Replace the object with a compressed copy, and move its name links
+	// to the copy - or they would keep the original content on disk
+	private void compress(Path object) throws IOException
+	{
+		String sha = object.getFileName().toString();
+		synchronized (lockOf(sha)) {
+			if (Files.notExists(object)) return;
+
+			Optional<JSONObject> meta = readMetadata(metaOf(object));
+			Path gz = ColdStorage.compress(object);
+			JSONArray names = meta.isPresent() ? meta.get().optJSONArray("names") : null;
+			for (int i = 0; names != null && i < names.length(); i++) {
+				Path link = nameDir(names.getString(i)).resolve(sha);
+				Files.deleteIfExists(link);
+				linkName(names.getString(i), sha, gz);
+			}
+		}
+	}
+
+	private void updateMetadata(SampleFile sample, String sha, String name, long size)
+			throws IOException
+	{
+		Path meta = metaOf(objectOf(sha));
+		JSONObject json = readMetadata(meta).orElseGet(() -> new JSONObject()
+				.put("sha256", sha)
+				.put("md5", sample.getMd5Hash())
+				.put("mime", sample.getMimeType().toString())
+				.put("size", size)
+				.put("first_seen", System.currentTimeMillis()));
+
+		json.put("last_seen", System.currentTimeMillis());
+		addUnique(json, "names", name);
+		addUnique(json, "sources", sample.getSource());
+		addUnique(json, "es_ids", sample.getEsId());
+
+		Path tmp = meta.resolveSibling(meta.getFileName() + ".tmp");
+		Files.write(tmp, json.toString(2).getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp, meta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void linkName(String name, String sha, Path object) throws IOException
+	{
+		Path link = Files.createDirectories(nameDir(name)).resolve(sha);
+		try {
+			Files.createLink(link, object);
+		} catch (FileAlreadyExistsException e) {
+			// same name and content were stored before
+		}
+	}
+
+	private Optional<JSONObject> readMetadata(Path meta) throws IOException
+	{
+		try {
+			return Optional.of(new JSONObject(
+					new String(Files.readAllBytes(meta), StandardCharsets.UTF_8)));
+		} catch (NoSuchFileException e) {
+			return Optional.empty();
+		}
+	}
+
+	private static void addUnique(JSONObject json, String key, String value)
+	{
+		if (value == null) return;
+
+		JSONArray values = json.optJSONArray(key);
+		if (values == null) {
+			values = new JSONArray();
+			json.put(key, values);
+		}
+		for (int i = 0; i < values.length(); i++) {
+			if (value.equals(values.optString(i))) return;
+		}
+		values.put(value);
+	}
+
+	private Path objectOf(String sha)
+	{
+		return objectsPath.resolve(sha.substring(0, 2)).resolve(sha.substring(2, 4)).resolve(sha);
+	}
+
+	private static Path metaOf(Path object)
+	{
+		return object.resolveSibling(object.getFileName() + META_EXT);
+	}
+
+	private Path nameDir(String name)
+	{
+		String h = UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString();
+		return namesPath.resolve(h.substring(0, 2)).resolve(h.substring(2, 4)).resolve(encode(name));
+	}
+
+	// names are used as dir names
+	private static String encode(String name)
+	{
+		try {
+			return URLEncoder.encode(name, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Object lockOf(String sha)
+	{
+		return locks[(sha.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+	}
+}
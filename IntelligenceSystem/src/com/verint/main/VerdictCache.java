@@ -0,0 +1,393 @@
+package com.verint.main;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Logger;
+
+import com.verint.utils.ErrorLogger;
+import com.verint.utils.Metrics;
+
+/**
+ * A persistent index of analysed samples, keyed by sha256. For each hash it
+ * records which tests completed, and for each test the es id of the sample
+ * doc holding its results - so the same binary from another source is not
+ * analysed again.
+ *
+ * The index is a memory-mapped open-addressing hash table (linear probing)
+ * of fixed size slots. It doubles, by rehashing into a new file, when it is
+ * 3/4 full.
+ */
+public class VerdictCache
+{
+	private static final String CACHE_FILE = "verdicts.idx";
+	private static final int MAGIC = 0x56524443; // VRDC
+	private static final int VERSION = 2;
+	private static final int INITIAL_SLOTS = 1 << 14;
+
+	// header: magic, version, slots, count
+	private static final int HEADER_SIZE = 16;
+
+	// slot: used(1) sha(32) done mask(4) supported mask(4) time(8), then for 
+	// each test: id length(1) id(111)
+	private static final int SHA_LEN = 32;
+	private static final int MAX_ID_LEN = 111;
+	private static final int OFF_SHA = 1;
+	private static final int OFF_DONE = OFF_SHA + SHA_LEN;
+	private static final int OFF_SUPPORTED = OFF_DONE + 4;
+	private static final int OFF_TIME = OFF_SUPPORTED + 4;
+	private static final int OFF_IDS = OFF_TIME + 8;
+	private static final int ID_SIZE = 1 + MAX_ID_LEN;
+	private static final int SLOT_SIZE = OFF_IDS + CheckType.values().length * ID_SIZE;
+
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private final Path file;
+	private final long ttlMillis;
+
+	private MappedByteBuffer map;
+	private int slots;
+	private int count;
+
+	/**
+	 * Open (or create) the cache on the given dir
+	 *
+	 * @param dir the cache dir
+	 * @param ttlMillis how long a verdict is valid. 0 or less never expires.
+	 */
+	public VerdictCache(Path dir, long ttlMillis) throws IOException
+	{
+		this.file = dir.resolve(CACHE_FILE);
+		this.ttlMillis = ttlMillis;
+
+		Files.createDirectories(dir);
+		open();
+
+		Metrics.getInstance().registerGauge("verdict.cache.size", () -> size());
+	}
+
+	/**
+	 * Find the verdict of a hash, if it is known and not expired
+	 */
+	public synchronized Optional<Verdict> lookup(String sha256)
+	{
+		byte[] key = toKey(sha256);
+		if (key == null) return Optional.empty();
+
+		int slot = find(map, slots, key);
+		if (!isUsed(map, slot)) return Optional.empty();
+
+		Verdict v = readVerdict(slot);
+		if (ttlMillis > 0 && System.currentTimeMillis() - v.getTimestamp() > ttlMillis) {
+			logger.fine("VerdictCache: verdict expired for " + sha256);
+			return Optional.empty();
+		}
+		return Optional.of(v);
+	}
+
+	/**
+	 * Record the tests completed on a finished sample. Only conclusive
+	 * tests (successful, or not supported for the sample type) are kept.
+	 * Tests the sample reused from the cache keep pointing to the doc that
+	 * holds their results, and tests it ran point to its own doc - so the
+	 * results of every analysis stay reachable. A sample that reused cached
+	 * results changes the verdict only if it added tests.
+	 */
+	public synchronized void record(SampleFile sample)
+	{
+		Map<CheckType, String> from = sample.getResultsFrom();
+		Optional<Verdict> known = lookup(sample.getSha256Hash());
+
+		// what is known already, and what the sample added
+		EnumSet<CheckType> done = EnumSet.noneOf(CheckType.class);
+		EnumSet<CheckType> supported = EnumSet.noneOf(CheckType.class);
+		Map<CheckType, String> esIds = new EnumMap<>(CheckType.class);
+		known.ifPresent(v -> {
+			done.addAll(v.getDone());
+			supported.addAll(v.supported);
+			esIds.putAll(v.esIds);
+		});
+
+		boolean added = false;
+		for (CheckType type : CheckType.values()) {
+			PerformedTest test = sample.getPerformedTest(type);
+			if (test == null || from.containsKey(type)) continue;
+			if (!test.isSuccess() && test.isSupported()) continue;
+
+			added = true;
+			done.add(type);
+			if (test.isSupported()) supported.add(type);
+			else supported.remove(type);
+			esIds.put(type, sample.getEsId());
+		}
+
+		if (added) record(sample.getSha256Hash(), esIds, done, supported);
+	}
+
+	/**
+	 * Record the verdict of a hash
+	 *
+	 * @param esIds the doc holding the results of each done test
+	 */
+	public synchronized void record(String sha256, Map<CheckType, String> esIds, 
+			EnumSet<CheckType> done, EnumSet<CheckType> supported)
+	{
+		byte[] key = toKey(sha256);
+		Map<CheckType, byte[]> ids = new EnumMap<>(CheckType.class);
+		for (CheckType type : done) {
+			String esId = esIds.get(type);
+			byte[] id = (esId != null) ? esId.getBytes(StandardCharsets.UTF_8) : null;
+			if (id == null || id.length > MAX_ID_LEN) key = null;
+			ids.put(type, id);
+		}
+		if (key == null) {
+			logger.fine("VerdictCache: cannot cache " + sha256);
+			return;
+		}
+
+		try {
+			if ((count + 1) * 4L > slots * 3L) resize(slots * 2);
+		} catch (IOException e) {
+			logger.warning("VerdictCache: cannot grow cache: " + e.getMessage());
+			if (count + 1 >= slots) return;
+		}
+
+		int slot = find(map, slots, key);
+		if (!isUsed(map, slot)) {
+			count++;
+			map.putInt(12, count);
+		}
+
+		int base = offset(slot);
+		map.put(base, (byte)1);
+		for (int i = 0; i < SHA_LEN; i++) map.put(base + OFF_SHA + i, key[i]);
+		map.putInt(base + OFF_DONE, toMask(done));
+		map.putInt(base + OFF_SUPPORTED, toMask(supported));
+		map.putLong(base + OFF_TIME, System.currentTimeMillis());
+		for (CheckType type : CheckType.values()) {
+			int at = base + OFF_IDS + type.ordinal() * ID_SIZE;
+			byte[] id = ids.get(type);
+			map.put(at, (byte)((id != null) ? id.length : 0));
+			if (id != null) {
+				for (int i = 0; i < id.length; i++) map.put(at + 1 + i, id[i]);
+			}
+		}
+	}
+
+	public synchronized int size()
+	{
+		return count;
+	}
+
+	/**
+	 * Push the changes to disk
+	 */
+	public synchronized void close()
+	{
+		map.force();
+	}
+
+	//
+	// Table
+	//
+	private void open() throws IOException
+	{
+		if (Files.notExists(file)) {
+			create(file, INITIAL_SLOTS);
+		}
+
+		map = mapFile(file);
+		if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+			logger.warning("VerdictCache: bad cache file, starting a new one: " + file);
+			create(file, INITIAL_SLOTS);
+			map = mapFile(file);
+		}
+		slots = map.getInt(8);
+		count = map.getInt(12);
+		logger.info("VerdictCache: loaded " + count + " verdicts");
+	}
+
+	// Rehash everything into a bigger table, and replace the file
+	private void resize(int newSlots) throws IOException
+	{
+		Path tmp = file.resolveSibling(CACHE_FILE + ".tmp");
+		create(tmp, newSlots);
+		MappedByteBuffer newMap = mapFile(tmp);
+
+		byte[] key = new byte[SHA_LEN];
+		for (int slot = 0; slot < slots; slot++) {
+			if (!isUsed(map, slot)) continue;
+
+			int from = offset(slot);
+			for (int i = 0; i < SHA_LEN; i++) key[i] = map.get(from + OFF_SHA + i);
+			int to = offset(find(newMap, newSlots, key));
+			for (int i = 0; i < SLOT_SIZE; i++) newMap.put(to + i, map.get(from + i));
+		}
+		newMap.putInt(12, count);
+		newMap.force();
+
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		map = newMap;
+		slots = newSlots;
+		logger.info("VerdictCache: grew to " + newSlots + " slots");
+	}
+
+	private static void create(Path path, int slots) throws IOException
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+			raf.setLength(0);
+			raf.setLength(HEADER_SIZE + (long)slots * SLOT_SIZE);
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeInt(slots);
+			raf.writeInt(0);
+		}
+	}
+
+	private static MappedByteBuffer mapFile(Path path) throws IOException
+	{
+		// the mapping stays valid after the channel is closed
+		try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw");
+			 FileChannel channel = raf.getChannel()) {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+		}
+	}
+
+	// The slot holding the key, or the empty slot it should go to
+	private static int find(MappedByteBuffer map, int slots, byte[] key)
+	{
+		// the sha is uniform, its first bytes are a good enough hash
+		int h = ((key[0] & 0xff) << 24) | ((key[1] & 0xff) << 16) | ((key[2] & 0xff) << 8) | (key[3] & 0xff);
+		int slot = (h & 0x7fffffff) % slots;
+
+		while (isUsed(map, slot) && !keyEquals(map, slot, key)) {
+			slot = (slot + 1) % slots;
+		}
+		return slot;
+	}
+
+	private static boolean isUsed(MappedByteBuffer map, int slot)
+	{
+		return map.get(offset(slot)) != 0;
+	}
+
+	private static boolean keyEquals(MappedByteBuffer map, int slot, byte[] key)
+	{
+		int base = offset(slot) + OFF_SHA;
+		for (int i = 0; i < SHA_LEN; i++) {
+			if (map.get(base + i) != key[i]) return false;
+		}
+		return true;
+	}
+
+	private static int offset(int slot)
+	{
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	private Verdict readVerdict(int slot)
+	{
+		int base = offset(slot);
+		Map<CheckType, String> esIds = new EnumMap<>(CheckType.class);
+		for (CheckType type : CheckType.values()) {
+			int at = base + OFF_IDS + type.ordinal() * ID_SIZE;
+			byte[] id = new byte[map.get(at) & 0xff];
+			if (id.length == 0) continue;
+			for (int i = 0; i < id.length; i++) id[i] = map.get(at + 1 + i);
+			esIds.put(type, new String(id, StandardCharsets.UTF_8));
+		}
+
+		return new Verdict(esIds,
+				fromMask(map.getInt(base + OFF_DONE)),
+				fromMask(map.getInt(base + OFF_SUPPORTED)),
+				map.getLong(base + OFF_TIME));
+	}
+
+	private static int toMask(EnumSet<CheckType> types)
+	{
+		int mask = 0;
+		for (CheckType t : types) mask |= 1 << t.ordinal();
+		return mask;
+	}
+
+	private static EnumSet<CheckType> fromMask(int mask)
+	{
+		EnumSet<CheckType> types = EnumSet.noneOf(CheckType.class);
+		for (CheckType t : CheckType.values()) {
+			if ((mask & (1 << t.ordinal())) != 0) types.add(t);
+		}
+		return types;
+	}
+
+	// hex sha256 to bytes. null if it is not a valid hash
+	private static byte[] toKey(String sha256)
+	{
+		if (sha256 == null || sha256.length() != SHA_LEN * 2) return null;
+
+		byte[] key = new byte[SHA_LEN];
+		for (int i = 0; i < SHA_LEN; i++) {
+			int hi = Character.digit(sha256.charAt(2 * i), 16);
+			int lo = Character.digit(sha256.charAt(2 * i + 1), 16);
+			if (hi < 0 || lo < 0) return null;
+			key[i] = (byte)((hi << 4) | lo);
+		}
+		return key;
+	}
+
+	/**
+	 * The cached verdict of a hash
+	 */
+	public static class Verdict
+	{
+		private final Map<CheckType, String> esIds;
+		private final EnumSet<CheckType> done;
+		private final EnumSet<CheckType> supported;
+		private final long timestamp;
+
+		public Verdict(Map<CheckType, String> esIds, EnumSet<CheckType> done, 
+				EnumSet<CheckType> supported, long timestamp)
+		{
+			this.esIds = esIds;
+			this.done = done;
+			this.supported = supported;
+			this.timestamp = timestamp;
+		}
+
+		// The sample doc holding the results of the test
+		public String getEsId(CheckType type)
+		{
+			return esIds.get(type);
+		}
+
+		// The tests that completed
+		public EnumSet<CheckType> getDone()
+		{
+			return done;
+		}
+
+		public boolean isSupported(CheckType type)
+		{
+			return supported.contains(type);
+		}
+
+		public long getTimestamp()
+		{
+			return timestamp;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("Verdict [esIds=%s, done=%s]", esIds, done);
+		}
+	}
+}
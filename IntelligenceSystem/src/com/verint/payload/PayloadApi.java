@@ -17,6 +17,7 @@ import com.verint.payload.data.PayloadJsonResponse;
 import com.verint.payload.data.PayloadPcapResponse;
 import com.verint.payload.data.PayloadResponse;
 import com.verint.utils.ErrorLogger;
+import com.verint.utils.ResourceLimits;
 
 /**
  * Implements payload security rest api
@@ -33,8 +34,12 @@ public class PayloadApi
 	private static final String SECRET = "secret";
 	private static final String ENV_ID = "environmentId";
 	private static final String TYPE = "type";
+	
+	// bounds concurrent requests to payload
+	private static final String HTTP_RESOURCE = "payload.http";
 
 	private Logger logger = ErrorLogger.getInstance().getLogger();
+	private ResourceLimits limits = ResourceLimits.getInstance();
 	
 	private final String apiKey; 
 	private final String secret; 
@@ -67,13 +72,13 @@ public class PayloadApi
 		}
 		
 		Integer statusCode = -1;
-		try{
-			HttpResponse<JsonNode> res = Unirest.post(URI_SUBMIT_FILE)
+		try {
+			HttpResponse<JsonNode> res = limits.with(HTTP_RESOURCE, () -> Unirest.post(URI_SUBMIT_FILE)
 					  .field(API_KEY, apiKey)
 					  .field(SECRET, secret)
 					  .field(ENV_ID, "100")
 					  .field("file", fileToScan)
-					  .asJson();
+					  .asJson());
 			
 			statusCode = res.getStatus();
 			return parseSimpleResponse(res.getBody());
@@ -103,13 +108,13 @@ public class PayloadApi
 
 		Integer statusCode = -1;
 		
-		try{
-			HttpResponse<JsonNode> res = Unirest.get(url)
+		try {
+			HttpResponse<JsonNode> res = limits.with(HTTP_RESOURCE, () -> Unirest.get(url)
 					  .queryString(API_KEY, apiKey)
 					  .queryString(SECRET, secret)
 					  .queryString(ENV_ID, "100")
 					  .queryString(TYPE, "json")
-					  .asJson();
+					  .asJson());
 					  			
 			statusCode = res.getStatus();
 			
@@ -147,13 +152,14 @@ public class PayloadApi
 		String url = URI_FILE_REPORT + "/" + hash;
 
 		Integer statusCode = -1;
-		try{
-			HttpResponse<InputStream> res = Unirest.get(url)
+		try {
+			// the body is read into memory before the permit is released
+			HttpResponse<InputStream> res = limits.with(HTTP_RESOURCE, () -> Unirest.get(url)
 					  .queryString(API_KEY, apiKey)
 					  .queryString(SECRET, secret)
 					  .queryString(ENV_ID, "100")
 					  .queryString(TYPE, "pcap")
-					  .asBinary();
+					  .asBinary());
 					  			
 			statusCode = res.getStatus();
 			logger.fine("PAYLOAD API: Status code: " + statusCode);
@@ -184,13 +190,13 @@ public class PayloadApi
 		String url = URI_SCAN_REPORT + "/" + hash;
 
 		Integer statusCode = -1;
-		try{
-			HttpResponse<JsonNode> res = Unirest.get(url)
+		try {
+			HttpResponse<JsonNode> res = limits.with(HTTP_RESOURCE, () -> Unirest.get(url)
 					  .queryString(API_KEY, apiKey)
 					  .queryString(SECRET, secret)
 					  .queryString(ENV_ID, "100")
 					  .queryString(TYPE, "json")
-					  .asJson();
+					  .asJson());
 					  			
 			statusCode = res.getStatus();
 			logger.fine("Status code: " + statusCode);
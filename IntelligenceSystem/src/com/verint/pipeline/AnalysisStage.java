@@ -0,0 +1,31 @@
+package com.verint.pipeline;
+
+/**
+ * A step in the analysis of samples, after (or between) the controllers.
+ * A stage declares its input, and the pipeline runs it on every
+ * matching event.
+ *
+ * Stages are listed in the config (pipeline.stages) by class name, and
+ * must have a public no-args constructor.
+ */
+public interface AnalysisStage
+{
+	/**
+	 * Name used in logs and metrics
+	 */
+	public String getName();
+
+	/**
+	 * The events this stage runs on
+	 */
+	public StageInput getInput();
+
+	/**
+	 * Run the stage on the event. Called on a pipeline thread, may block.
+	 * Artifacts are shared by path, stages should not move or change them.
+	 *
+	 * @param event the event
+	 * @param pipeline used for handing results back to the system
+	 */
+	public void run(StageEvent event, Pipeline pipeline) throws Exception;
+}
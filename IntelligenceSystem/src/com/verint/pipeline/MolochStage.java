@@ -0,0 +1,33 @@
+package com.verint.pipeline;
+
+import com.verint.moloch.MolochController;
+import com.verint.utils.Config;
+import com.verint.utils.Utils;
+
+/**
+ * Stores finished pcaps on Moloch
+ */
+public class MolochStage implements AnalysisStage
+{
+	private MolochController moloch = new MolochController();
+
+	@Override
+	public String getName()
+	{
+		return "moloch";
+	}
+
+	@Override
+	public StageInput getInput()
+	{
+		return StageInput.finishedSample(type -> type.equals(Utils.PCAP_MIME));
+	}
+
+	@Override
+	public void run(StageEvent event, Pipeline pipeline)
+	{
+		if (!Config.runMolochController()) return;
+
+		moloch.submitPcapToMoloch(event.getSample().getPath());
+	}
+}
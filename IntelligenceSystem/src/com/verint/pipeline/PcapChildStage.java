@@ -0,0 +1,41 @@
+package com.verint.pipeline;
+
+import com.verint.main.CheckType;
+import com.verint.main.Context;
+import com.verint.main.FileDetails;
+import com.verint.main.SampleFile;
+import com.verint.utils.Utils;
+
+/**
+ * Passes the pcap recorded by payload through the system, as a child
+ * sample of the same context. The child uses the pcap where payload
+ * saved it, no copy is made.
+ */
+public class PcapChildStage implements AnalysisStage
+{
+	@Override
+	public String getName()
+	{
+		return "pcap-child";
+	}
+
+	@Override
+	public StageInput getInput()
+	{
+		return StageInput.artifactOf(CheckType.PAYLOAD);
+	}
+
+	@Override
+	public void run(StageEvent event, Pipeline pipeline)
+	{
+		// new sample with same context.
+		Context ctx = event.getSample().getContext();
+		ctx.incRunningStep();
+
+		FileDetails params = new FileDetails();
+		params.setFileSource("sandbox");
+		SampleFile child = new SampleFile(event.getArtifact().get(), Utils.PCAP_MIME, ctx, params);
+
+		pipeline.submitSample(child);
+	}
+}
@@ -0,0 +1,123 @@
+package com.verint.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.verint.main.SampleFile;
+import com.verint.utils.Config;
+import com.verint.utils.ErrorLogger;
+import com.verint.utils.Metrics;
+import com.verint.utils.ThreadPools;
+import com.verint.utils.Utils;
+
+/**
+ * Runs the analysis stages. Each event is matched against the declared
+ * stage inputs, and all matching stages run concurrently. New samples
+ * produced by stages are handed back to the system.
+ *
+ * @see AnalysisStage
+ */
+public class Pipeline
+{
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+	private Metrics metrics = Metrics.getInstance();
+
+	private final List<AnalysisStage> stages;
+	private final Consumer<SampleFile> sampleSink;
+	private final ExecutorService executor = ThreadPools.newTaskExecutor("pipeline");
+
+	/**
+	 * Create a pipeline with the stages listed in the config
+	 *
+	 * @param sampleSink receives new samples produced by stages
+	 */
+	public Pipeline(Consumer<SampleFile> sampleSink)
+	{
+		this(loadStages(Config.getPipelineStages()), sampleSink);
+	}
+
+	public Pipeline(List<AnalysisStage> stages, Consumer<SampleFile> sampleSink)
+	{
+		this.stages = Collections.unmodifiableList(new ArrayList<>(stages));
+		this.sampleSink = sampleSink;
+
+		stages.forEach(s -> logger.info("Pipeline: stage " + s.getName() + ": " + s.getInput()));
+	}
+
+	/**
+	 * Run all the stages the event matches
+	 *
+	 * @return completed when all of them are done
+	 */
+	public CompletableFuture<Void> publish(StageEvent event)
+	{
+		List<CompletableFuture<Void>> running = new ArrayList<>();
+		for (AnalysisStage stage : stages) {
+			if (!stage.getInput().matches(event)) continue;
+
+			try {
+				running.add(CompletableFuture.runAsync(() -> runStage(stage, event), executor));
+			} catch (RejectedExecutionException e) {
+				logger.info("Pipeline: shut down, not running " + stage.getName());
+			}
+		}
+
+		return CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[running.size()]));
+	}
+
+	/**
+	 * Pass a new sample through the system
+	 */
+	public void submitSample(SampleFile sample)
+	{
+		logger.info("Pipeline: submitting new sample " + sample.getPath());
+		sampleSink.accept(sample);
+	}
+
+	public List<AnalysisStage> getStages()
+	{
+		return stages;
+	}
+
+	public void shutdown()
+	{
+		Utils.shutdownExecutor(executor, 60);
+	}
+
+	// a failing stage must not fail the others, or the sample
+	private void runStage(AnalysisStage stage, StageEvent event)
+	{
+		long start = System.nanoTime();
+		try {
+			logger.fine("Pipeline: running " + stage.getName() + " on " + event);
+			stage.run(event, this);
+		} catch (Exception e) {
+			logger.log(Level.SEVERE, "Pipeline: stage " + stage.getName() + " failed on " + event, e);
+			metrics.increment("stage." + stage.getName() + ".failed");
+		} finally {
+			metrics.recordTime("stage." + stage.getName(), start);
+		}
+	}
+
+	// Instantiate the stages by class name
+	private static List<AnalysisStage> loadStages(List<String> classNames)
+	{
+		List<AnalysisStage> stages = new ArrayList<>();
+		for (String name : classNames) {
+			try {
+				stages.add((AnalysisStage)Class.forName(name).getDeclaredConstructor().newInstance());
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				ErrorLogger.getInstance().getLogger().log(Level.SEVERE, 
+						"Pipeline: cannot load stage " + name, e);
+			}
+		}
+		return stages;
+	}
+}
@@ -0,0 +1,71 @@
+package com.verint.pipeline;
+
+import java.nio.file.Path;
+import java.util.Optional;
+
+import com.verint.main.CheckType;
+import com.verint.main.SampleFile;
+import com.verint.pipeline.StageInput.Kind;
+
+/**
+ * Something that happened to a sample, that stages may run on
+ */
+public final class StageEvent
+{
+	private final Kind kind;
+	private final SampleFile sample;
+	private final CheckType producer;
+	private final Path artifact;
+
+	private StageEvent(Kind kind, SampleFile sample, CheckType producer, Path artifact)
+	{
+		this.kind = kind;
+		this.sample = sample;
+		this.producer = producer;
+		this.artifact = artifact;
+	}
+
+	/**
+	 * A test on the sample produced an artifact file
+	 */
+	public static StageEvent artifact(SampleFile sample, CheckType producer, Path artifact)
+	{
+		return new StageEvent(Kind.ARTIFACT, sample, producer, artifact);
+	}
+
+	/**
+	 * The sample finished all its tests
+	 */
+	public static StageEvent finished(SampleFile sample)
+	{
+		return new StageEvent(Kind.FINISHED, sample, null, null);
+	}
+
+	public Kind getKind()
+	{
+		return kind;
+	}
+
+	// The sample the event is on (the parent, for artifacts)
+	public SampleFile getSample()
+	{
+		return sample;
+	}
+
+	public Optional<CheckType> getProducer()
+	{
+		return Optional.ofNullable(producer);
+	}
+
+	public Optional<Path> getArtifact()
+	{
+		return Optional.ofNullable(artifact);
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("StageEvent [kind=%s, sample=%s, producer=%s, artifact=%s]",
+				kind, sample.getPath(), producer, artifact);
+	}
+}
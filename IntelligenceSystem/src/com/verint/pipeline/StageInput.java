@@ -0,0 +1,78 @@
+package com.verint.pipeline;
+
+import java.util.Optional;
+import java.util.function.Predicate;
+
+import org.apache.tika.mime.MediaType;
+
+import com.verint.main.CheckType;
+
+/**
+ * Declares what a stage runs on: an artifact produced by a test (e.g. the
+ * payload pcap), or a sample that finished all its tests. Both can be
+ * narrowed by the mime type of the sample.
+ */
+public final class StageInput
+{
+	public enum Kind {ARTIFACT, FINISHED};
+
+	private final Kind kind;
+	private final CheckType producer;
+	private final Predicate<MediaType> mimeType;
+
+	private StageInput(Kind kind, CheckType producer, Predicate<MediaType> mimeType)
+	{
+		this.kind = kind;
+		this.producer = producer;
+		this.mimeType = mimeType;
+	}
+
+	/**
+	 * Artifacts produced by the given test
+	 */
+	public static StageInput artifactOf(CheckType producer)
+	{
+		return new StageInput(Kind.ARTIFACT, producer, t -> true);
+	}
+
+	/**
+	 * Finished samples of any type
+	 */
+	public static StageInput finishedSample()
+	{
+		return finishedSample(t -> true);
+	}
+
+	/**
+	 * Finished samples of the given types
+	 */
+	public static StageInput finishedSample(Predicate<MediaType> mimeType)
+	{
+		return new StageInput(Kind.FINISHED, null, mimeType);
+	}
+
+	public Kind getKind()
+	{
+		return kind;
+	}
+
+	public Optional<CheckType> getProducer()
+	{
+		return Optional.ofNullable(producer);
+	}
+
+	// Does the event feed this input
+	public boolean matches(StageEvent event)
+	{
+		if (event.getKind() != kind) return false;
+		if (kind == Kind.ARTIFACT && event.getProducer().orElse(null) != producer) return false;
+
+		return mimeType.test(event.getSample().getMimeType());
+	}
+
+	@Override
+	public String toString()
+	{
+		return (kind == Kind.ARTIFACT) ? producer + " artifact" : "finished sample";
+	}
+}
@@ -0,0 +1,91 @@
+package com.verint.tests;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import javax.xml.bind.DatatypeConverter;
+
+import com.verint.utils.FileHasher;
+import com.verint.utils.FileHashes;
+
+/**
+ * Compares the old hashing path (readAllBytes once per digest) with the
+ * single pass FileHasher, for inputs from 1KB up to the given max size.
+ *
+ * Usage: TestHashPerformance [max size in MB, default 4096] [iterations, default 5]
+ */
+public class TestHashPerformance {
+
+	private static final long KB = 1024;
+	private static final long MB = KB * 1024;
+	private static final long[] SIZES = {KB, 64 * KB, MB, 16 * MB, 256 * MB, 1024 * MB, 4096 * MB};
+
+	public static void main(String[] args) throws Exception {
+		long maxSize = (args.length > 0) ? Long.parseLong(args[0]) * MB : 4096 * MB;
+		int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+		System.out.printf("%-12s %-20s %-20s %n", "size", "readAllBytes (ms)", "single pass (ms)");
+		for (long size : SIZES) {
+			if (size > maxSize) break;
+
+			Path file = createFile(size);
+			try {
+				// warm up both paths
+				oldPath(file);
+				FileHasher.hash(file);
+
+				String oldTime = timeOldPath(file, iterations);
+				String newTime = timeNewPath(file, iterations);
+				System.out.printf("%-12s %-20s %-20s %n", size / KB + "KB", oldTime, newTime);
+			} finally {
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	private static String timeOldPath(Path file, int iterations) {
+		try {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) oldPath(file);
+			return String.format("%.2f", (System.nanoTime() - start) / 1e6 / iterations);
+		} catch (OutOfMemoryError | Exception e) {
+			// readAllBytes cannot load files over 2GB, or over the heap size
+			return "failed: " + e.getClass().getSimpleName();
+		}
+	}
+
+	private static String timeNewPath(Path file, int iterations) throws IOException {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			FileHashes hashes = FileHasher.hash(file);
+			if (hashes.getSize() != Files.size(file)) throw new IllegalStateException("size mismatch");
+		}
+		return String.format("%.2f", (System.nanoTime() - start) / 1e6 / iterations);
+	}
+
+	// What SampleFile used to do - load the file once per digest
+	private static void oldPath(Path file) throws Exception {
+		for (String algorithm : new String[] {"SHA-256", "MD5"}) {
+			MessageDigest md = MessageDigest.getInstance(algorithm);
+			md.update(Files.readAllBytes(file));
+			DatatypeConverter.printHexBinary(md.digest());
+		}
+	}
+
+	private static Path createFile(long size) throws IOException {
+		Path file = Files.createTempFile("hashperf", ".bin");
+		byte[] block = new byte[(int) MB];
+		new Random(size).nextBytes(block);
+
+		try (OutputStream out = Files.newOutputStream(file)) {
+			for (long written = 0; written < size; written += block.length) {
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		}
+		return file;
+	}
+}
@@ -0,0 +1,175 @@
+package com.verint.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.tika.mime.MediaType;
+
+import com.verint.utils.FileHasher;
+import com.verint.utils.FileHashes;
+import com.verint.utils.MimeDetector;
+import com.verint.utils.Utils;
+
+/**
+ * Compares the old mime detection (tika on the file path) with the
+ * MimeDetector on the header read while hashing, with and without its
+ * cache, on a corpus of the types we route on. Also reports any file the
+ * two detect differently.
+ *
+ * Usage: TestMimeDetection [files per type, default 200] [rounds, default 5]
+ */
+public class TestMimeDetection {
+
+	private static final String[][] TYPES = {
+			{"pe", ".exe"}, {"pe", ".dll"}, {"pe", ""}, {"mz", ".com"},
+			{"elf-exec", ""}, {"elf-so", ".so"}, {"pcap", ".pcap"}, {"pcap-le", ""},
+			{"ole", ".doc"}, {"ole", ".xls"}, {"ole", ""}, {"zip", ".zip"}, {"zip", ".jar"},
+			{"zip", ".docx"}, {"text", ".txt"}, {"text", ""}, {"random", ".bin"}};
+
+	public static void main(String[] args) throws Exception {
+		int perType = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+		Path dir = Files.createTempDirectory("mimeperf");
+		try {
+			List<Path> files = createCorpus(dir, perType);
+			List<FileHashes> hashes = new ArrayList<>();
+			for (Path f : files) hashes.add(FileHasher.hash(f));
+
+			int mismatches = compare(files, hashes);
+
+			// warm up all paths
+			timeTika(files, 1);
+			timeDetector(files, hashes, 1, new MimeDetector(0));
+
+			double tika = timeTika(files, rounds);
+			double uncached = timeDetector(files, hashes, rounds, new MimeDetector(0));
+			double cached = timeDetector(files, hashes, rounds, new MimeDetector(files.size()));
+
+			System.out.printf("%-28s %-16s %n", "path", "detections/sec");
+			System.out.printf("%-28s %-16.0f %n", "tika on file", tika);
+			System.out.printf("%-28s %-16.0f %n", "header, no cache", uncached);
+			System.out.printf("%-28s %-16.0f %n", "header, cached by sha256", cached);
+			System.out.printf("%d files, %d mismatches %n", files.size(), mismatches);
+		} finally {
+			try (Stream<Path> files = Files.list(dir)) {
+				files.forEach(f -> f.toFile().delete());
+			}
+			Files.delete(dir);
+		}
+	}
+
+	private static int compare(List<Path> files, List<FileHashes> hashes) throws IOException {
+		MimeDetector detector = new MimeDetector(0);
+		int mismatches = 0;
+		for (int i = 0; i < files.size(); i++) {
+			Path f = files.get(i);
+			MediaType expected = MediaType.parse(Utils.identifyFileType(f));
+			MediaType actual = detector.detect(hashes.get(i).getHeader(), f.getFileName().toString(), null);
+			if (!expected.equals(actual)) {
+				mismatches++;
+				System.out.println("mismatch: " + f.getFileName() + " tika: " + expected + " detector: " + actual);
+			}
+		}
+		return mismatches;
+	}
+
+	private static double timeTika(List<Path> files, int rounds) throws IOException {
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			for (Path f : files) Utils.identifyFileType(f);
+		}
+		return files.size() * rounds / ((System.nanoTime() - start) / 1e9);
+	}
+
+	private static double timeDetector(List<Path> files, List<FileHashes> hashes, int rounds,
+			MimeDetector detector) throws IOException {
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			for (int i = 0; i < files.size(); i++) {
+				FileHashes h = hashes.get(i);
+				detector.detect(h.getHeader(), files.get(i).getFileName().toString(), h.getSha256());
+			}
+		}
+		return files.size() * rounds / ((System.nanoTime() - start) / 1e9);
+	}
+
+	private static List<Path> createCorpus(Path dir, int perType) throws IOException {
+		List<Path> files = new ArrayList<>();
+		Random random = new Random(1);
+		for (String[] type : TYPES) {
+			for (int i = 0; i < perType; i++) {
+				Path f = dir.resolve(type[0] + "_" + files.size() + type[1]);
+				Files.write(f, content(type[0], random));
+				files.add(f);
+			}
+		}
+		return files;
+	}
+
+	// A file of the given kind, with a random body of up to 256KB
+	private static byte[] content(String kind, Random random) throws IOException {
+		byte[] data = new byte[4096 + random.nextInt(256 * 1024)];
+		random.nextBytes(data);
+		switch (kind) {
+		case "pe":
+			put(data, 0, 'M', 'Z');
+			put(data, 0x3c, 0x80, 0, 0, 0);
+			put(data, 0x80, 'P', 'E', 0, 0);
+			break;
+		case "mz":
+			put(data, 0, 'M', 'Z');
+			put(data, 0x3c, 0, 0, 0, 0);
+			put(data, 0x80, 0, 0, 0, 0);
+			break;
+		case "elf-exec":
+			put(data, 0, 0x7f, 'E', 'L', 'F', 2, 1, 1);
+			put(data, 16, 2, 0);
+			break;
+		case "elf-so":
+			put(data, 0, 0x7f, 'E', 'L', 'F', 2, 1, 1);
+			put(data, 16, 3, 0);
+			break;
+		case "pcap":
+			put(data, 0, 0xa1, 0xb2, 0xc3, 0xd4, 0, 2, 0, 4);
+			break;
+		case "pcap-le":
+			put(data, 0, 0xd4, 0xc3, 0xb2, 0xa1, 2, 0, 4, 0);
+			break;
+		case "ole":
+			put(data, 0, 0xd0, 0xcf, 0x11, 0xe0, 0xa1, 0xb1, 0x1a, 0xe1);
+			break;
+		case "zip":
+			return zip(data);
+		case "text":
+			for (int i = 0; i < data.length; i++) data[i] = (byte) ('a' + random.nextInt(26));
+			for (int i = 80; i < data.length; i += 80) data[i] = '\n';
+			break;
+		}
+		return data;
+	}
+
+	private static byte[] zip(byte[] body) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+			zip.putNextEntry(new ZipEntry("readme.txt"));
+			zip.write("sample".getBytes(StandardCharsets.UTF_8));
+			zip.putNextEntry(new ZipEntry("data.bin"));
+			zip.write(body);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void put(byte[] data, int offset, int... bytes) {
+		for (int i = 0; i < bytes.length; i++) data[offset + i] = (byte) bytes[i];
+	}
+}
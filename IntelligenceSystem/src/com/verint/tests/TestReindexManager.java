@@ -0,0 +1,80 @@
+package com.verint.tests;
+
+import java.net.InetAddress;
+
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.transport.client.PreBuiltTransportClient;
+
+import com.verint.es.ReindexManager;
+
+/**
+ * Integration check of the ReindexManager against a local ES node: indexes
+ * docs into a source index, reindexes it into a dest index, and checks all
+ * docs were copied and the source was deleted.
+ *
+ * Usage: TestReindexManager [cluster name, default elasticsearch] [docs, default 10000]
+ */
+public class TestReindexManager {
+
+	private static final String SRC = "test-reindex-src";
+	private static final String DEST = "test-reindex-dest";
+	private static final long TIMEOUT_MILLIS = 120000;
+
+	public static void main(String[] args) throws Exception {
+		String cluster = (args.length > 0) ? args[0] : "elasticsearch";
+		int docs = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+
+		Settings settings = Settings.builder().put("cluster.name", cluster).build();
+		try (TransportClient client = new PreBuiltTransportClient(settings)) {
+			client.addTransportAddress(new InetSocketTransportAddress(
+					InetAddress.getByName("localhost"), 9300));
+
+			deleteIfExists(client, SRC);
+			deleteIfExists(client, DEST);
+			indexDocs(client, docs);
+
+			ReindexManager reindexer = new ReindexManager(client, 4, 500, 10000);
+			long start = System.currentTimeMillis();
+			reindexer.reindexAndDelete(SRC, DEST, null);
+
+			// the source is deleted only once all its docs were copied
+			while (exists(client, SRC) && System.currentTimeMillis() - start < TIMEOUT_MILLIS) {
+				Thread.sleep(500);
+			}
+			reindexer.shutdown();
+
+			client.admin().indices().prepareRefresh(DEST).get();
+			long copied = client.prepareSearch(DEST).setSize(0).get().getHits().getTotalHits();
+			boolean deleted = !exists(client, SRC);
+
+			System.out.printf("%d docs, %d copied, source deleted: %s, in %d ms %n",
+					docs, copied, deleted, System.currentTimeMillis() - start);
+			System.out.println((copied == docs && deleted) ? "PASSED" : "FAILED");
+
+			deleteIfExists(client, DEST);
+		}
+	}
+
+	private static void indexDocs(TransportClient client, int docs) {
+		for (int from = 0; from < docs; from += 1000) {
+			BulkRequestBuilder bulk = client.prepareBulk();
+			for (int i = from; i < Math.min(from + 1000, docs); i++) {
+				bulk.add(client.prepareIndex(SRC, "event", String.valueOf(i))
+						.setSource("{\"seq\":" + i + ",\"host\":\"win7\"}", XContentType.JSON));
+			}
+			if (bulk.get().hasFailures()) throw new IllegalStateException("cannot index test docs");
+		}
+	}
+
+	private static boolean exists(TransportClient client, String index) {
+		return client.admin().indices().prepareExists(index).get().isExists();
+	}
+
+	private static void deleteIfExists(TransportClient client, String index) {
+		if (exists(client, index)) client.admin().indices().prepareDelete(index).get();
+	}
+}
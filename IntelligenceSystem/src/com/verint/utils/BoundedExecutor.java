@@ -0,0 +1,108 @@
+package com.verint.utils;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds a thread-per-task executor (virtual threads) like a fixed pool:
+ * at most 'threads' tasks run at once, and at most 'queueSize' more wait.
+ * Waiting tasks wait on a semaphore in their own (cheap) thread, so
+ * callers never block. Tasks over the limit are rejected.
+ */
+public class BoundedExecutor extends AbstractExecutorService
+{
+	private final ExecutorService delegate;
+	private final Semaphore running;
+	private final Semaphore capacity;
+	private final int threads;
+	private final long maxTasks;
+
+	/**
+	 * @param delegate a thread-per-task executor
+	 * @param threads max running tasks
+	 * @param queueSize max waiting tasks
+	 */
+	public BoundedExecutor(ExecutorService delegate, int threads, int queueSize)
+	{
+		this.delegate = delegate;
+		this.threads = threads;
+		this.maxTasks = Math.min(Integer.MAX_VALUE, (long)threads + queueSize);
+		this.running = new Semaphore(threads);
+		this.capacity = new Semaphore((int)maxTasks);
+	}
+
+	@Override
+	public void execute(Runnable task)
+	{
+		if (!capacity.tryAcquire())
+			throw new RejectedExecutionException("executor is full");
+
+		try {
+			delegate.execute(() -> runBounded(task));
+		} catch (RejectedExecutionException e) {
+			capacity.release();
+			throw e;
+		}
+	}
+
+	private void runBounded(Runnable task)
+	{
+		try {
+			running.acquire();
+			try {
+				task.run();
+			} finally {
+				running.release();
+			}
+		} catch (InterruptedException e) {
+			// cancelled while waiting
+			Thread.currentThread().interrupt();
+		} finally {
+			capacity.release();
+		}
+	}
+
+	public int getActiveCount()
+	{
+		return threads - running.availablePermits();
+	}
+
+	public int getQueuedCount()
+	{
+		return (int)(maxTasks - capacity.availablePermits()) - getActiveCount();
+	}
+
+	@Override
+	public void shutdown()
+	{
+		delegate.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow()
+	{
+		return delegate.shutdownNow();
+	}
+
+	@Override
+	public boolean isShutdown()
+	{
+		return delegate.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated()
+	{
+		return delegate.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return delegate.awaitTermination(timeout, unit);
+	}
+}
@@ -0,0 +1,238 @@
+package com.verint.utils;
+
+import java.io.BufferedInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A cold tier for stored files: files not modified for a while are
+ * compressed (gzip) in the background, and replaced by [file].gz.
+ *
+ * Readers use the static accessors with the original path - they read
+ * whichever of the two exists, and can restore the original (e.g. to
+ * analyse a sample again).
+ */
+public class ColdStorage
+{
+	public static final String EXT = ".gz";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private final long ageMillis;
+	private final List<Tier> tiers = new CopyOnWriteArrayList<>();
+	private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "cold-storage");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+
+	// bytes saved so far
+	private AtomicLong saved = new AtomicLong();
+
+	/**
+	 * @param ageMillis compress files not modified for this long
+	 */
+	public ColdStorage(long ageMillis)
+	{
+		this.ageMillis = ageMillis;
+		Metrics.getInstance().registerGauge("cold.storage.saved.mb", () -> saved.get() >> 20);
+	}
+
+	/**
+	 * Compress the old files under a dir
+	 *
+	 * @param root the dir
+	 * @param filter the files to compress
+	 * @param compressor compresses a single file
+	 */
+	public void addDir(Path root, Predicate<Path> filter, Compressor compressor)
+	{
+		tiers.add(new Tier(root, filter, compressor));
+	}
+
+	public void addDir(Path root, Predicate<Path> filter)
+	{
+		addDir(root, filter, ColdStorage::compress);
+	}
+
+	public void start(long intervalMillis)
+	{
+		scheduler.scheduleWithFixedDelay(() -> sweep(), intervalMillis, intervalMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	public void shutdown()
+	{
+		Utils.shutdownExecutor(scheduler, 5);
+	}
+
+	// Compress the old files of all dirs
+	private void sweep()
+	{
+		long before = System.currentTimeMillis() - ageMillis;
+		for (Tier tier : tiers) {
+			int count = 0;
+			try (Stream<Path> files = Files.walk(tier.root)) {
+				Iterable<Path> it = files
+						.filter(f -> !f.getFileName().toString().endsWith(EXT))
+						.filter(tier.filter)::iterator;
+				for (Path f : it) {
+					if (scheduler.isShutdown()) return;
+					if (compressIfOld(tier, f, before)) count++;
+				}
+			} catch (IOException | RuntimeException e) {
+				logger.log(Level.INFO, "ColdStorage: sweep of " + tier.root + " failed", e);
+			}
+			if (count > 0) logger.info("ColdStorage: compressed " + count + " files on " + tier.root);
+		}
+	}
+
+	private boolean compressIfOld(Tier tier, Path file, long before)
+	{
+		try {
+			if (!Files.isRegularFile(file) || Files.getLastModifiedTime(file).toMillis() > before) {
+				return false;
+			}
+			long size = Files.size(file);
+			tier.compressor.compress(file);
+			saved.addAndGet(size - Files.size(compressed(file)));
+			Metrics.getInstance().increment("cold.storage.compressed");
+			return true;
+		} catch (NoSuchFileException e) {
+			// removed (or compressed) while we walked
+			return false;
+		} catch (IOException e) {
+			logger.log(Level.INFO, "ColdStorage: cannot compress " + file + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	//
+	// Accessors
+	//
+	/**
+	 * Replace a file with its compressed copy, keeping its modification
+	 * time. The copy is complete before the file is deleted.
+	 *
+	 * @return the compressed file
+	 */
+	public static Path compress(Path file) throws IOException
+	{
+		Path gz = compressed(file);
+		if (Files.notExists(gz)) {
+			Path tmp = gz.resolveSibling(gz.getFileName() + ".tmp");
+			try (InputStream in = Files.newInputStream(file);
+				 FileOutputStream fileOut = new FileOutputStream(tmp.toFile());
+				 OutputStream out = new GZIPOutputStream(fileOut, BUFFER_SIZE)) {
+				copy(in, out);
+				((GZIPOutputStream)out).finish();
+				fileOut.getChannel().force(false);
+			}
+			Files.setLastModifiedTime(tmp, Files.getLastModifiedTime(file));
+			Files.move(tmp, gz, StandardCopyOption.ATOMIC_MOVE);
+		}
+		Files.delete(file);
+		return gz;
+	}
+
+	/**
+	 * Read a file, compressed or not
+	 */
+	public static InputStream open(Path file) throws IOException
+	{
+		try {
+			return Files.newInputStream(file);
+		} catch (NoSuchFileException e) {
+			return new GZIPInputStream(new BufferedInputStream(
+					Files.newInputStream(compressed(file)), BUFFER_SIZE), BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 * Bring back the original file, if it was compressed. The compressed
+	 * copy is kept, so the file is not compressed again.
+	 *
+	 * @return the original file
+	 */
+	public static Path restore(Path file) throws IOException
+	{
+		if (Files.exists(file)) return file;
+
+		Path tmp = file.resolveSibling(file.getFileName() + ".restore.tmp");
+		try (InputStream in = open(file); OutputStream out = Files.newOutputStream(tmp)) {
+			copy(in, out);
+		}
+		Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+		return file;
+	}
+
+	/**
+	 * Whether a file exists, compressed or not
+	 */
+	public static boolean exists(Path file)
+	{
+		return Files.exists(file) || Files.exists(compressed(file));
+	}
+
+	public static Path compressed(Path file)
+	{
+		return file.resolveSibling(file.getFileName() + EXT);
+	}
+
+	public static boolean isCompressed(Path file)
+	{
+		return Files.notExists(file) && Files.exists(compressed(file));
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException
+	{
+		byte[] buf = new byte[BUFFER_SIZE];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+	}
+
+	/**
+	 * Compresses a single file, e.g. with {@link ColdStorage#compress(Path)}
+	 */
+	public interface Compressor
+	{
+		void compress(Path file) throws IOException;
+	}
+
+	private static class Tier
+	{
+		final Path root;
+		final Predicate<Path> filter;
+		final Compressor compressor;
+
+		Tier(Path root, Predicate<Path> filter, Compressor compressor)
+		{
+			this.root = root;
+			this.filter = filter;
+			this.compressor = compressor;
+		}
+	}
+}
@@ -2,17 +2,24 @@ package com.verint.utils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.stream.Collectors;
 
 import org.yaml.snakeyaml.Yaml;
 
 import com.verint.cnc.main.CncMachine;
+import com.verint.main.CheckType;
 
 /**
  * Holds config data for the system
@@ -22,6 +29,7 @@ import com.verint.cnc.main.CncMachine;
 public class Config {
 	private static final String CONFIG_FOLDER = "config";
 	private static final String CONFIG_FILE = "intelligence.yml";
+	private static final String NODE_ID_FILE = "node.id";
 	
 	//////////////////////////////////////////////////////////////////////////////////
 	private static final String RUN_EDR_CONTROLLER = "run.edr.controller";
@@ -31,6 +39,38 @@ public class Config {
 	private static final String FILES_PATH = "submit.files.path";
 	private static final String SAVE_PATH = "save.files.path";
 	private static final String REPORT_PATH = "daily.report.path";
+	private static final String FILES_READY_QUIET_SECS = "files.ready.quiet.secs";
+	private static final String FILES_READY_CHECK_MILLIS = "files.ready.check.millis";
+	private static final String WATCH_COALESCE_MILLIS = "files.watch.coalesce.millis";
+	private static final String MIME_CACHE_SIZE = "mime.cache.size";
+	private static final String PREPARE_THREADS = "prepare.threads";
+	private static final String PREPARE_QUEUE_SIZE = "prepare.queue.size";
+	private static final String METRICS_REPORT_SECS = "metrics.report.secs";
+	private static final String SPILL_PATH = "spill.path";
+	private static final String JOURNAL_PATH = "journal.path";
+	private static final String JOURNAL_SYNC_MILLIS = "journal.sync.millis";
+	private static final String EXECUTION_MODE = "execution.mode";
+	private static final String RESOURCE_PERMITS = "resource.%s.permits";
+	private static final String SCHEDULER_CAPACITY = "scheduler.capacity";
+	private static final String SCHEDULER_WEIGHTS = "scheduler.source.weights";
+	private static final String SCHEDULER_MALICIOUS_BOOST = "scheduler.malicious.boost";
+	private static final String SCHEDULER_PCAP_SJF = "scheduler.pcap.shortest.first";
+	private static final String CONTROLLER_TIMEOUT_MINS = "controller.%s.timeout.mins";
+	private static final String SAMPLE_DEADLINE_MINS = "sample.deadline.mins";
+	private static final String CONTROLLER_THREADS = "controller.%s.threads";
+	private static final String CONTROLLER_QUEUE_SIZE = "controller.%s.queue.size";
+	private static final String PIPELINE_STAGES = "pipeline.stages";
+	private static final String VERDICT_CACHE_PATH = "verdict.cache.path";
+	private static final String COLD_STORAGE_DAYS = "cold.storage.after.days";
+	private static final String COLD_STORAGE_CHECK_HOURS = "cold.storage.check.hours";
+	private static final String COLD_STORAGE_PATHS = "cold.storage.paths";
+	private static final String CLUSTER_ENABLED = "cluster.enabled";
+	private static final String CLUSTER_NODE_ID = "cluster.node.id";
+	private static final String CLUSTER_CLAIMS_PATH = "cluster.claims.path";
+	private static final String CLUSTER_LEASE_SECS = "cluster.lease.secs";
+	private static final String CLUSTER_HEARTBEAT_SECS = "cluster.heartbeat.secs";
+	private static final String VERDICT_CACHE_TTL_HOURS = "verdict.cache.ttl.hours";
+	private static final String VERDICT_CACHE_FORCE_RESCAN = "verdict.cache.force.rescan";
 	
 	private static final String VT_DOWNLOAD_DIR = "vt.downloads.dir";
 	private static final String VT_PARAMS_FILE = "vt.params.file";
@@ -41,6 +81,17 @@ public class Config {
 	private static final String ES_INDEX_NAME = "elastic.index.name";
 	private static final String ES_CLUSTER_NAME = "elastic.cluster.name";
 	private static final String ES_NODE_NAME = "elastic.node.name";
+	private static final String ES_BULK_ACTIONS = "elastic.bulk.actions";
+	private static final String ES_BULK_SIZE_MB = "elastic.bulk.size.mb";
+	private static final String ES_BULK_FLUSH_MILLIS = "elastic.bulk.flush.millis";
+	private static final String ES_BULK_CONCURRENT = "elastic.bulk.concurrent";
+	private static final String ES_RETRY_PATH = "elastic.retry.path";
+	private static final String ES_INDEX_WATCH_SECS = "elastic.index.watch.secs";
+	private static final String ES_REINDEX_SLICES = "elastic.reindex.slices";
+	private static final String ES_PAYLOAD_SPLIT_MIN_ITEMS = "elastic.payload.split.min.items";
+	private static final String ES_REINDEX_CHECK_SECS = "elastic.reindex.check.secs";
+	private static final String ES_REINDEX_SETTLE_MAX_MINUTES = "elastic.reindex.settle.max.minutes";
+	private static final String ES_RETRY_MAX_BACKOFF_SECS = "elastic.retry.max.backoff.secs";
 	
 	private static final String VBOX_URL = "vbox.url";
 	
@@ -66,6 +117,9 @@ public class Config {
 	// holds the config properties
 	private static Map<String, Object> configMap = new HashMap<>();
 	
+	// generated or configured once, see getNodeId
+	private static String nodeId;
+	
 	public static String getESHost()
 	{
 		return (String)configMap.getOrDefault(ES_HOST, "localhost");
@@ -91,6 +145,62 @@ public class Config {
 		return (String)configMap.getOrDefault(ES_NODE_NAME, "intelligence1");
 	}
 	
+	public static int getESBulkActions()
+	{
+		return (int)configMap.getOrDefault(ES_BULK_ACTIONS, 1000);
+	}
+	
+	public static int getESBulkSizeMb()
+	{
+		return (int)configMap.getOrDefault(ES_BULK_SIZE_MB, 5);
+	}
+	
+	public static int getESBulkFlushMillis()
+	{
+		return (int)configMap.getOrDefault(ES_BULK_FLUSH_MILLIS, 1000);
+	}
+	
+	public static int getESBulkConcurrent()
+	{
+		return (int)configMap.getOrDefault(ES_BULK_CONCURRENT, 2);
+	}
+	
+	public static String getESRetryPath()
+	{
+		return nodeLocal((String)configMap.getOrDefault(ES_RETRY_PATH, "es_spool"));
+	}
+	
+	public static int getESRetryMaxBackoffSecs()
+	{
+		return (int)configMap.getOrDefault(ES_RETRY_MAX_BACKOFF_SECS, 300);
+	}
+	
+	public static int getESIndexWatchSecs()
+	{
+		return (int)configMap.getOrDefault(ES_INDEX_WATCH_SECS, 15);
+	}
+	
+	public static int getESReindexSlices()
+	{
+		return (int)configMap.getOrDefault(ES_REINDEX_SLICES, 5);
+	}
+	
+	public static int getESReindexCheckSecs()
+	{
+		return (int)configMap.getOrDefault(ES_REINDEX_CHECK_SECS, 10);
+	}
+	
+	public static int getESReindexSettleMaxMinutes()
+	{
+		return (int)configMap.getOrDefault(ES_REINDEX_SETTLE_MAX_MINUTES, 10);
+	}
+	
+	// 0 never splits
+	public static int getESPayloadSplitMinItems()
+	{
+		return (int)configMap.getOrDefault(ES_PAYLOAD_SPLIT_MIN_ITEMS, 100);
+	}
+	
 	
 	public static String getVBoxUrl()
 	{
@@ -223,6 +333,229 @@ public class Config {
 		return (String)configMap.getOrDefault(REPORT_PATH, "daily_reports");
 	}
 	
+	public static int getFilesReadyQuietSecs()
+	{
+		return (int)configMap.getOrDefault(FILES_READY_QUIET_SECS, 5);
+	}
+	
+	public static int getFilesReadyCheckMillis()
+	{
+		return (int)configMap.getOrDefault(FILES_READY_CHECK_MILLIS, 1000);
+	}
+	
+	public static int getWatchCoalesceMillis()
+	{
+		return (int)configMap.getOrDefault(WATCH_COALESCE_MILLIS, 50);
+	}
+	
+	public static int getMimeCacheSize()
+	{
+		return (int)configMap.getOrDefault(MIME_CACHE_SIZE, 100000);
+	}
+	
+	public static int getPrepareThreads()
+	{
+		return (int)configMap.getOrDefault(PREPARE_THREADS, 
+				Runtime.getRuntime().availableProcessors());
+	}
+	
+	public static int getPrepareQueueSize()
+	{
+		return (int)configMap.getOrDefault(PREPARE_QUEUE_SIZE, 1000);
+	}
+	
+	public static String getSpillPath()
+	{
+		return nodeLocal((String)configMap.getOrDefault(SPILL_PATH, "spool"));
+	}
+	
+	public static String getJournalPath()
+	{
+		return nodeLocal((String)configMap.getOrDefault(JOURNAL_PATH, "journal"));
+	}
+	
+	public static int getJournalSyncMillis()
+	{
+		return (int)configMap.getOrDefault(JOURNAL_SYNC_MILLIS, 200);
+	}
+	
+	public static ExecutionMode getExecutionMode()
+	{
+		String mode = (String)configMap.getOrDefault(EXECUTION_MODE, "platform");
+		try {
+			return ExecutionMode.valueOf(mode.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return ExecutionMode.PLATFORM;
+		}
+	}
+	
+	public static int getResourcePermits(String resource)
+	{
+		return (int)configMap.getOrDefault(String.format(RESOURCE_PERMITS, resource), 16);
+	}
+	
+	public static int getControllerThreads(CheckType type)
+	{
+		// payload is async, the others block on their engine
+		int def = (type == CheckType.PAYLOAD) ? 4 : 1;
+		return (int)configMap.getOrDefault(
+				String.format(CONTROLLER_THREADS, type.toString().toLowerCase()), def);
+	}
+	
+	public static int getControllerQueueSize(CheckType type)
+	{
+		return (int)configMap.getOrDefault(
+				String.format(CONTROLLER_QUEUE_SIZE, type.toString().toLowerCase()), 1000);
+	}
+	
+	public static List<String> getPipelineStages()
+	{
+		return (List<String>)configMap.getOrDefault(PIPELINE_STAGES, Arrays.asList(
+				"com.verint.pipeline.PcapChildStage", 
+				"com.verint.pipeline.MolochStage"));
+	}
+	
+	public static int getSchedulerCapacity()
+	{
+		return (int)configMap.getOrDefault(SCHEDULER_CAPACITY, 10000);
+	}
+	
+	// source name (lower case) to weight
+	public static Map<String, Integer> getSchedulerWeights()
+	{
+		Map<String, Integer> weights = (Map<String, Integer>)configMap.get(SCHEDULER_WEIGHTS);
+		if (weights == null) return Collections.emptyMap();
+		
+		return weights.entrySet().stream()
+				.collect(Collectors.toMap(e -> e.getKey().toLowerCase(), e -> e.getValue()));
+	}
+	
+	public static int getMaliciousBoost()
+	{
+		return (int)configMap.getOrDefault(SCHEDULER_MALICIOUS_BOOST, 4);
+	}
+	
+	public static boolean isPcapShortestFirst()
+	{
+		return configMap.getOrDefault(SCHEDULER_PCAP_SJF, "false").equals(true);
+	}
+	
+	public static int getControllerTimeoutMins(CheckType type)
+	{
+		// payload reports take the longest
+		int def = (type == CheckType.PAYLOAD) ? 60 : 30;
+		return (int)configMap.getOrDefault(
+				String.format(CONTROLLER_TIMEOUT_MINS, type.toString().toLowerCase()), def);
+	}
+	
+	public static int getSampleDeadlineMins()
+	{
+		return (int)configMap.getOrDefault(SAMPLE_DEADLINE_MINS, 120);
+	}
+	
+	public static String getVerdictCachePath()
+	{
+		return nodeLocal((String)configMap.getOrDefault(VERDICT_CACHE_PATH, "cache"));
+	}
+	
+	// 0 never compresses
+	public static int getColdStorageDays()
+	{
+		return (int)configMap.getOrDefault(COLD_STORAGE_DAYS, 30);
+	}
+	
+	public static int getColdStorageCheckHours()
+	{
+		return (int)configMap.getOrDefault(COLD_STORAGE_CHECK_HOURS, 6);
+	}
+	
+	// Other dirs to compress, besides the samples storage
+	public static List<String> getColdStoragePaths()
+	{
+		return (List<String>)configMap.getOrDefault(COLD_STORAGE_PATHS, Arrays.asList("pcaps"));
+	}
+	
+	public static boolean isClusterEnabled()
+	{
+		return configMap.getOrDefault(CLUSTER_ENABLED, "false").equals(true);
+	}
+	
+	// Unique per instance, and the same across restarts - the local state 
+	// (journal, cache, spool) is kept under it. Instances sharing a config dir 
+	// set it with -Dcluster.node.id. Default generated on the first run, and 
+	// kept in the config dir
+	public static synchronized String getNodeId()
+	{
+		if (nodeId == null) {
+			String id = (String)configMap.get(CLUSTER_NODE_ID);
+			if (id == null || id.isEmpty()) {
+				id = System.getProperty(CLUSTER_NODE_ID);
+			}
+			nodeId = (id == null || id.isEmpty()) ? loadNodeId() : id;
+		}
+		return nodeId;
+	}
+	
+	// The id kept in the config dir, created if there is none yet
+	private static String loadNodeId()
+	{
+		Path file = Paths.get(CONFIG_FOLDER, NODE_ID_FILE);
+		try {
+			if (Files.exists(file)) {
+				String id = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+				if (!id.isEmpty()) return id;
+			}
+			
+			// the host, and a random part for instances on the same host
+			String name = ManagementFactory.getRuntimeMXBean().getName();
+			String id = name.substring(name.indexOf('@') + 1) + "-" + 
+					UUID.randomUUID().toString().substring(0, 8);
+			Files.write(file, id.getBytes(StandardCharsets.UTF_8));
+			ErrorLogger.getInstance().getLogger().info("Config: new node id " + id + ", kept in " + file);
+			return id;
+		} catch (IOException e) {
+			// a new id on every run would lose the local state, so don't run
+			throw new UncheckedIOException("Cannot keep the node id in " + file + 
+					". Set " + CLUSTER_NODE_ID, e);
+		}
+	}
+	
+	public static String getClaimsPath()
+	{
+		return (String)configMap.getOrDefault(CLUSTER_CLAIMS_PATH, "claims");
+	}
+	
+	public static int getLeaseSecs()
+	{
+		return (int)configMap.getOrDefault(CLUSTER_LEASE_SECS, 60);
+	}
+	
+	public static int getHeartbeatSecs()
+	{
+		return (int)configMap.getOrDefault(CLUSTER_HEARTBEAT_SECS, 15);
+	}
+	
+	// Instances sharing the files path keep their local state apart
+	private static String nodeLocal(String path)
+	{
+		return isClusterEnabled() ? Paths.get(path, getNodeId()).toString() : path;
+	}
+	
+	public static int getVerdictCacheTtlHours()
+	{
+		return (int)configMap.getOrDefault(VERDICT_CACHE_TTL_HOURS, 168);
+	}
+	
+	public static boolean forceRescan()
+	{
+		return configMap.getOrDefault(VERDICT_CACHE_FORCE_RESCAN, "false").equals(true);
+	}
+	
+	public static int getMetricsReportSecs()
+	{
+		return (int)configMap.getOrDefault(METRICS_REPORT_SECS, 60);
+	}
+	
 	public static String getVtDownloadPath()
 	{
 		return (String)configMap.getOrDefault(VT_DOWNLOAD_DIR, "vt_downloads");
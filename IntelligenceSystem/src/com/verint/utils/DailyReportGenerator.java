@@ -22,7 +22,7 @@ public class DailyReportGenerator
 		reportsDir = Utils.getPath(Config.getDailyReportPath());
 	}
 	
-	public void addLineToReport(SampleFile file){
+	public synchronized void addLineToReport(SampleFile file){
 		reportsFile = getDailyReportFile();
 		
 		// TODO: maybe minimze number of writer object
@@ -0,0 +1,177 @@
+package com.verint.utils;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * The entries of a watched dir, as known to its watcher - so when the watch
+ * service overflows (drops events), the dir is listed once and the missed
+ * changes are replayed as synthetic watch events.
+ *
+ * The snapshot follows the watch events, without touching the disk. The
+ * size and time of an entry are read only on reconciliation. Not thread
+ * safe - it is meant to be used on the watching thread.
+ */
+public class DirSnapshot
+{
+	// size or time not known yet
+	private static final long UNKNOWN = -1;
+
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private final Path dir;
+
+	// entry name to {size, modified time}
+	private Map<String, long[]> entries = new HashMap<>();
+
+	public DirSnapshot(Path dir)
+	{
+		this.dir = dir;
+	}
+
+	/**
+	 * Take the names of the current entries, without reading their
+	 * attributes. Call right after the dir is registered.
+	 */
+	public void init() throws IOException
+	{
+		entries.clear();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path p : stream) {
+				entries.put(p.getFileName().toString(), new long[] { UNKNOWN, UNKNOWN });
+			}
+		}
+	}
+
+	/**
+	 * Follow a watch event.
+	 *
+	 * @return false if the event adds nothing to the snapshot - a create of
+	 *  a known entry, or a delete of an unknown one (e.g. already replayed
+	 *  by a reconciliation)
+	 */
+	public boolean apply(WatchEvent.Kind<?> kind, Path name)
+	{
+		String key = name.getFileName().toString();
+		if (kind == ENTRY_CREATE) {
+			return entries.putIfAbsent(key, new long[] { UNKNOWN, UNKNOWN }) == null;
+		}
+		if (kind == ENTRY_DELETE) {
+			return entries.remove(key) != null;
+		}
+		return true;
+	}
+
+	/**
+	 * List the dir and replay what the events missed: creates for new
+	 * entries, deletes for entries that are gone, and modifies for entries
+	 * whose size or time changed. The snapshot is updated.
+	 *
+	 * @return the synthetic events, with names relative to the dir
+	 */
+	public List<WatchEvent<Path>> reconcile() throws IOException
+	{
+		long start = System.currentTimeMillis();
+		List<WatchEvent<Path>> events = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path p : stream) {
+				String key = p.getFileName().toString();
+				long[] attrs = readAttrs(p);
+				if (attrs == null) continue; // deleted while we list
+				seen.add(key);
+
+				long[] known = entries.put(key, attrs);
+				if (known == null) {
+					events.add(new SyntheticEvent(ENTRY_CREATE, p.getFileName()));
+				} else if (known[0] != UNKNOWN && (known[0] != attrs[0] || known[1] != attrs[1])) {
+					events.add(new SyntheticEvent(ENTRY_MODIFY, p.getFileName()));
+				}
+			}
+		}
+
+		for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+			String key = it.next();
+			if (!seen.contains(key)) {
+				it.remove();
+				events.add(new SyntheticEvent(ENTRY_DELETE, dir.getFileSystem().getPath(key)));
+			}
+		}
+
+		logger.info("DirSnapshot: reconciled " + dir + ": " + entries.size() + " entries, " +
+				events.size() + " missed events, in " + (System.currentTimeMillis() - start) + " ms");
+		return events;
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	private static long[] readAttrs(Path p) throws IOException
+	{
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+			return new long[] { attrs.size(), attrs.lastModifiedTime().toMillis() };
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * A watch event made up by a reconciliation
+	 */
+	private static class SyntheticEvent implements WatchEvent<Path>
+	{
+		private final WatchEvent.Kind<Path> kind;
+		private final Path context;
+
+		SyntheticEvent(WatchEvent.Kind<Path> kind, Path context)
+		{
+			this.kind = kind;
+			this.context = context;
+		}
+
+		@Override
+		public WatchEvent.Kind<Path> kind()
+		{
+			return kind;
+		}
+
+		@Override
+		public int count()
+		{
+			return 1;
+		}
+
+		@Override
+		public Path context()
+		{
+			return context;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "SyntheticEvent [" + kind.name() + " " + context + "]";
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package com.verint.utils;
+
+/**
+ * How the system runs its per-sample and per-request work
+ */
+public enum ExecutionMode
+{
+	// a pool of os threads
+	PLATFORM,
+	// a virtual thread per task (java 21 and above)
+	VIRTUAL;
+}
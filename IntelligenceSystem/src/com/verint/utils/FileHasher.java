@@ -0,0 +1,127 @@
+package com.verint.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Calculates all the digests we need on a file in a single pass.
+ *
+ * The file is read in fixed size chunks into a buffer that is reused by the
+ * calling thread, and every chunk is fed to all digests. This way a file is
+ * read only once, and heap usage does not depend on the file size (samples
+ * can be multi-GB pcaps). The first bytes of the file are kept, for type
+ * detection without reading the file again.
+ */
+public class FileHasher
+{
+	// The read chunk size. 64K is a good balance between syscalls and cache
+	public static final int CHUNK_SIZE = 64 * 1024;
+	
+	// The prefix kept for type detection. Enough for all of tika's magics
+	public static final int HEADER_SIZE = 64 * 1024;
+
+	// Each thread keeps its own buffer and digests, so nothing is allocated
+	// per file and no locking is needed.
+	private static final ThreadLocal<HashingState> state =
+			ThreadLocal.withInitial(HashingState::new);
+
+	private FileHasher() {
+	}
+
+	/**
+	 * Calculate sha256 and md5 of the given file in a single read
+	 *
+	 * @param file the file to hash
+	 * @return the file hashes
+	 * @throws IOException on read failure
+	 */
+	public static FileHashes hash(Path file) throws IOException
+	{
+		return hash(file, false);
+	}
+
+	/**
+	 * Calculate sha256, md5 and optionally sha1 of the given file in a
+	 * single read
+	 *
+	 * @param file the file to hash
+	 * @param withSha1 whether to calculate sha1 also
+	 * @return the file hashes
+	 * @throws IOException on read failure
+	 */
+	public static FileHashes hash(Path file, boolean withSha1) throws IOException
+	{
+		HashingState s = state.get();
+		s.reset();
+
+		long size = 0;
+		byte[] header = new byte[HEADER_SIZE];
+		int headerLen = 0;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer buffer = s.buffer;
+			byte[] chunk = buffer.array();
+			int len;
+
+			buffer.clear();
+			while ((len = channel.read(buffer)) != -1) {
+				if (len == 0) continue;
+
+				s.sha256.update(chunk, 0, len);
+				s.md5.update(chunk, 0, len);
+				if (withSha1) s.sha1.update(chunk, 0, len);
+				if (headerLen < HEADER_SIZE) {
+					int n = Math.min(len, HEADER_SIZE - headerLen);
+					System.arraycopy(chunk, 0, header, headerLen, n);
+					headerLen += n;
+				}
+
+				size += len;
+				buffer.clear();
+			}
+		}
+
+		return new FileHashes(toHex(s.sha256.digest()), toHex(s.md5.digest()),
+				withSha1 ? toHex(s.sha1.digest()) : null, size,
+				(headerLen < HEADER_SIZE) ? Arrays.copyOf(header, headerLen) : header);
+	}
+
+	private static String toHex(byte[] digest)
+	{
+		return DatatypeConverter.printHexBinary(digest).toUpperCase();
+	}
+
+	// Per thread hashing resources
+	private static class HashingState
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+		final MessageDigest sha256 = getDigest("SHA-256");
+		final MessageDigest md5 = getDigest("MD5");
+		final MessageDigest sha1 = getDigest("SHA-1");
+
+		// a previous call could have failed in the middle of a file
+		void reset()
+		{
+			sha256.reset();
+			md5.reset();
+			sha1.reset();
+		}
+
+		private static MessageDigest getDigest(String algorithm)
+		{
+			try {
+				return MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				// this 'cannot' happen, every jvm must support these.
+				throw new IllegalStateException("missing digest " + algorithm, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.verint.utils;
+
+import java.util.Optional;
+
+/**
+ * The digests of a single file, as calculated by {@link FileHasher} in
+ * one pass over the file. Hashes are upper-case hex strings.
+ */
+public final class FileHashes
+{
+	private final String sha256;
+	private final String md5;
+	private final String sha1;
+	private final long size;
+	private final byte[] header;
+
+	public FileHashes(String sha256, String md5, String sha1, long size)
+	{
+		this(sha256, md5, sha1, size, new byte[0]);
+	}
+
+	public FileHashes(String sha256, String md5, String sha1, long size, byte[] header)
+	{
+		this.sha256 = sha256;
+		this.md5 = md5;
+		this.sha1 = sha1;
+		this.size = size;
+		this.header = header;
+	}
+
+	public String getSha256()
+	{
+		return sha256;
+	}
+
+	public String getMd5()
+	{
+		return md5;
+	}
+
+	// Only calculated when requested
+	public Optional<String> getSha1()
+	{
+		return Optional.ofNullable(sha1);
+	}
+
+	// number of bytes hashed
+	public long getSize()
+	{
+		return size;
+	}
+
+	// the first bytes of the file, read while hashing. Not a copy.
+	public byte[] getHeader()
+	{
+		return header;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("FileHashes [sha256=%s, md5=%s, sha1=%s, size=%s]",
+				sha256, md5, sha1, size);
+	}
+}
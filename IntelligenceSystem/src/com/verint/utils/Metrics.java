@@ -0,0 +1,139 @@
+package com.verint.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Simple in-process metrics: counters, gauges and timers, periodically
+ * written to the log.
+ */
+public class Metrics
+{
+	// holder pattern, for lazy init and thread safety
+	private static class Holder {
+		private static Metrics instance = new Metrics();
+	}
+
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private ConcurrentMap<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+	private ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService reporter;
+
+	private Metrics() {
+	}
+
+	public static Metrics getInstance()
+	{
+		return Holder.instance;
+	}
+
+	//
+	// Counters
+	//
+	public void increment(String name)
+	{
+		add(name, 1);
+	}
+
+	public void add(String name, long value)
+	{
+		counters.computeIfAbsent(name, k -> new LongAdder()).add(value);
+	}
+
+	public long getCount(String name)
+	{
+		LongAdder counter = counters.get(name);
+		return (counter != null) ? counter.sum() : 0;
+	}
+
+	//
+	// Gauges - read when reporting
+	//
+	public void registerGauge(String name, Supplier<? extends Number> gauge)
+	{
+		gauges.put(name, gauge);
+	}
+
+	public void removeGauge(String name)
+	{
+		gauges.remove(name);
+	}
+
+	//
+	// Timers
+	//
+
+	/**
+	 * Record the time passed since the given start
+	 * @param name the timer name
+	 * @param startNanos start time, as returned from System.nanoTime()
+	 */
+	public void recordTime(String name, long startNanos)
+	{
+		timers.computeIfAbsent(name, k -> new Timer()).record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Returns a sorted snapshot of all metrics
+	 */
+	public Map<String, String> snapshot()
+	{
+		Map<String, String> result = new TreeMap<>();
+		counters.forEach((name, counter) -> result.put(name, String.valueOf(counter.sum())));
+		gauges.forEach((name, gauge) -> result.put(name, String.valueOf(gauge.get())));
+		timers.forEach((name, timer) -> result.put(name, timer.toString()));
+		return result;
+	}
+
+	/**
+	 * Write the metrics to log every given seconds. Reporting thread is a daemon.
+	 */
+	public synchronized void startReporting(int intervalSecs)
+	{
+		if (reporter != null) return;
+
+		reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics-reporter");
+			t.setDaemon(true);
+			return t;
+		});
+		reporter.scheduleWithFixedDelay(() -> logger.info("Metrics: " + snapshot()),
+				intervalSecs, intervalSecs, TimeUnit.SECONDS);
+	}
+
+	// Count, total and max of recorded times
+	private static class Timer
+	{
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+		void record(long nanos)
+		{
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+		}
+
+		@Override
+		public String toString()
+		{
+			long n = count.sum();
+			long avgMillis = (n == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos.sum() / n);
+			return String.format("[count=%d, avg=%dms, max=%dms]", n, avgMillis,
+					TimeUnit.NANOSECONDS.toMillis(maxNanos.get()));
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package com.verint.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.tika.Tika;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.mime.MediaTypeRegistry;
+import org.apache.tika.mime.MimeType;
+import org.apache.tika.mime.MimeTypeException;
+import org.apache.tika.mime.MimeTypes;
+
+/**
+ * Mime type detection of samples, from the header read while hashing - so
+ * the file is not opened again.
+ *
+ * The types we route on (PE, ELF, pcap, office, archives) are matched first
+ * against their magics only, instead of all the magics tika knows. Other
+ * headers go to the full tika detection. The type of the content is cached
+ * by sha256, and refined by the file name (e.g. a dll and an exe share a
+ * magic) on every detection, as tika does.
+ */
+public class MimeDetector
+{
+	// holder pattern, for lazy init and thread safety
+	private static class Holder {
+		private static MimeDetector instance = new MimeDetector(Config.getMimeCacheSize());
+	}
+
+	// the types we route on. Their specializations are matched as well
+	private static final String[] ROUTED_TYPES = {
+			"application/x-msdownload",
+			"application/x-elf",
+			"application/vnd.tcpdump.pcap",
+			"application/x-tika-msoffice",
+			"application/zip" };
+
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+	private Metrics metrics = Metrics.getInstance();
+
+	private final MimeTypes mimeTypes = MimeTypes.getDefaultMimeTypes();
+	private final MediaTypeRegistry registry = mimeTypes.getMediaTypeRegistry();
+	private final Tika tika = new Tika();
+	private final List<MimeType> routed;
+	private final Map<String, MediaType> cache;
+
+	public MimeDetector(int cacheSize)
+	{
+		this.routed = routedTypes();
+		this.cache = Collections.synchronizedMap(new LinkedHashMap<String, MediaType>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, MediaType> eldest)
+			{
+				return size() > cacheSize;
+			}
+		});
+		logger.fine("MimeDetector: matching " + routed.size() + " routed types first");
+	}
+
+	public static MimeDetector getInstance()
+	{
+		return Holder.instance;
+	}
+
+	/**
+	 * Detect the type of a file
+	 *
+	 * @param header the first bytes of the file, see {@link FileHashes#getHeader()}
+	 * @param name the file name, used as a hint
+	 * @param sha256 the file hash, or null to skip the cache
+	 */
+	public MediaType detect(byte[] header, String name, String sha256) throws IOException
+	{
+		MediaType type = (sha256 == null || sha256.isEmpty()) ? null : cache.get(sha256);
+		if (type != null) {
+			metrics.increment("mime.cache.hits");
+		} else {
+			type = detectContent(header);
+			if (sha256 != null && !sha256.isEmpty()) cache.put(sha256, type);
+		}
+		return refineByName(type, name);
+	}
+
+	// The type by content only
+	private MediaType detectContent(byte[] header) throws IOException
+	{
+		MediaType type = matchRouted(header);
+		if (type != null) {
+			metrics.increment("mime.detect.fast");
+			return type;
+		}
+		metrics.increment("mime.detect.full");
+		return MediaType.parse(tika.detect(new ByteArrayInputStream(header)));
+	}
+
+	// The most specific routed type whose magic matches, or null if none
+	// does, or the matches are not of one family
+	private MediaType matchRouted(byte[] header)
+	{
+		MediaType best = null;
+		for (MimeType mime : routed) {
+			if (!mime.matchesMagic(header)) continue;
+
+			MediaType type = mime.getType();
+			if (best == null || registry.isSpecializationOf(type, best)) {
+				best = type;
+			} else if (!registry.isSpecializationOf(best, type)) {
+				return null;
+			}
+		}
+		return best;
+	}
+
+	// A name type that specializes the content type wins, like in tika
+	private MediaType refineByName(MediaType type, String name)
+	{
+		if (name == null) return type;
+
+		Metadata metadata = new Metadata();
+		metadata.set(Metadata.RESOURCE_NAME_KEY, name);
+		try {
+			MediaType byName = mimeTypes.detect(null, metadata);
+			if (!byName.equals(MediaType.OCTET_STREAM) &&
+					(byName.equals(type) || registry.isSpecializationOf(byName, type))) {
+				return byName;
+			}
+		} catch (IOException e) {
+			// no input is read
+		}
+		return type;
+	}
+
+	private List<MimeType> routedTypes()
+	{
+		List<MimeType> types = new ArrayList<>();
+		for (MediaType type : registry.getTypes()) {
+			if (!isRouted(type)) continue;
+			try {
+				MimeType mime = mimeTypes.forName(type.toString());
+				if (mime.hasMagic()) types.add(mime);
+			} catch (MimeTypeException e) {
+				logger.fine("MimeDetector: unknown type " + type);
+			}
+		}
+		return types;
+	}
+
+	private boolean isRouted(MediaType type)
+	{
+		for (String name : ROUTED_TYPES) {
+			MediaType root = MediaType.parse(name);
+			if (type.equals(root) || registry.isSpecializationOf(type, root)) return true;
+		}
+		return false;
+	}
+}
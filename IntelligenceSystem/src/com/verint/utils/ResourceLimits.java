@@ -0,0 +1,107 @@
+package com.verint.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounds the concurrent use of external resources (rmi services, http
+ * apis, the db). With virtual threads the number of threads is no longer a
+ * limit, so every call to a resource takes a permit:
+ * 
+ * <pre>
+ * Response res = ResourceLimits.getInstance().with("payload.http", () -> http.get());
+ * </pre>
+ *
+ * Calls that hold the resource beyond a single call (e.g. a db connection)
+ * take the permit with acquire, and close it when done.
+ *
+ * Permits per resource are set with 'resource.NAME.permits' in the config.
+ */
+public class ResourceLimits
+{
+	private Map<String, Semaphore> limits = new ConcurrentHashMap<>();
+
+	// holder pattern, for lazy init and thread safety
+	private static class SingletonHolder {
+		private static ResourceLimits instance = new ResourceLimits(); 
+	}
+
+	private ResourceLimits(){
+	}
+
+	public static ResourceLimits getInstance()
+	{
+		return SingletonHolder.instance;
+	}
+
+	/**
+	 * Wait for a permit to use the resource
+	 *
+	 * @param resource the resource name
+	 * @return the permit, to be closed when done with the resource
+	 */
+	public Permit acquire(String resource)
+	{
+		Semaphore limit = limits.computeIfAbsent(resource, r -> createLimit(r));
+		limit.acquireUninterruptibly();
+		return new Permit(limit);
+	}
+
+	/**
+	 * Make the call while holding a permit to use the resource
+	 *
+	 * @param resource the resource name
+	 * @param call the call to the resource
+	 * @return what the call returned
+	 */
+	public <T, E extends Exception> T with(String resource, Call<T, E> call) throws E
+	{
+		Permit permit = acquire(resource);
+		try {
+			return call.call();
+		} finally {
+			permit.close();
+		}
+	}
+
+	private Semaphore createLimit(String resource)
+	{
+		Semaphore limit = new Semaphore(Config.getResourcePermits(resource), true);
+		Metrics.getInstance().registerGauge("resource." + resource + ".waiting", 
+				() -> limit.getQueueLength());
+		return limit;
+	}
+
+	/**
+	 * A call to a resource, that may throw the resource's exception
+	 */
+	@FunctionalInterface
+	public interface Call<T, E extends Exception>
+	{
+		T call() throws E;
+	}
+
+	/**
+	 * A permit to use a resource. Released on close.
+	 */
+	public static class Permit implements AutoCloseable
+	{
+		private Semaphore limit;
+
+		private Permit(Semaphore limit)
+		{
+			this.limit = limit;
+		}
+
+		@Override
+		public void close()
+		{
+			// release once only
+			if (limit != null) {
+				limit.release();
+				limit = null;
+			}
+		}
+	}
+}
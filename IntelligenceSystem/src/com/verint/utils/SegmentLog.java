@@ -0,0 +1,270 @@
+package com.verint.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * An append-only log of text entries (one per line), kept on disk as a
+ * sequence of segment files. Entries are read back in the order they were
+ * appended, and each segment is deleted once all of it was read.
+ *
+ * Writing goes to the newest segment, reading comes from sealed segments
+ * only, so the two never share a file. Not thread safe - callers must
+ * synchronize.
+ *
+ * Entries can also be read with a cursor: peek reads them, and commit
+ * removes them once the caller is done with them. Until then a peek
+ * returns them again, and a restart keeps them.
+ */
+public class SegmentLog
+{
+	private static final String SUFFIX = ".log";
+
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private final Path dir;
+	private final String prefix;
+	private final int entriesPerSegment;
+
+	// sealed segments, oldest first, with their number of unread entries
+	private Deque<Segment> sealed = new ArrayDeque<>();
+
+	// the segment being written
+	private Segment current;
+	private FileOutputStream currentOut;
+	private BufferedWriter writer;
+
+	// the sealed segment being read
+	private BufferedReader reader;
+
+	// entries peeked and not committed yet, the segments they finished, and
+	// the lines those segments lost
+	private List<String> pending = new ArrayList<>();
+	private List<Segment> finished = new ArrayList<>();
+	private long lost = 0;
+
+	private long nextSeq = 0;
+	private long size = 0;
+
+	/**
+	 * Open a log on the given dir. Existing segments with the same prefix
+	 * are recovered, and will be read first.
+	 *
+	 * @param dir the dir holding the segments
+	 * @param prefix segment file name prefix
+	 * @param entriesPerSegment entries in a segment before moving to a new one
+	 */
+	public SegmentLog(Path dir, String prefix, int entriesPerSegment) throws IOException
+	{
+		this.dir = dir;
+		this.prefix = prefix;
+		this.entriesPerSegment = entriesPerSegment;
+
+		Files.createDirectories(dir);
+		recoverSegments();
+	}
+
+	/**
+	 * Append an entry. It must not contain line breaks.
+	 */
+	public void append(String entry) throws IOException
+	{
+		if (current == null) openNewSegment();
+
+		writer.write(entry);
+		writer.newLine();
+		current.entries++;
+		size++;
+
+		if (current.entries >= entriesPerSegment) sealCurrent();
+	}
+
+	/**
+	 * Push appended entries to the OS. When sync is true, also force them
+	 * to the disk.
+	 */
+	public void flush(boolean sync) throws IOException
+	{
+		if (writer == null) return;
+
+		writer.flush();
+		if (sync) currentOut.getChannel().force(false);
+	}
+
+	/**
+	 * Read and remove up to max entries, oldest first
+	 */
+	public List<String> read(int max) throws IOException
+	{
+		List<String> result = peek(max);
+		commit();
+		return result;
+	}
+
+	/**
+	 * Read up to max entries, oldest first, without removing them. If the
+	 * entries of the last peek were not committed, they are returned again.
+	 */
+	public List<String> peek(int max) throws IOException
+	{
+		if (!pending.isEmpty()) return new ArrayList<>(pending);
+
+		long unread = size;
+		while (pending.size() < max && unread > 0) {
+			// only sealed segments are read. Seal the current one if it is
+			// all that is left.
+			if (sealed.isEmpty()) sealCurrent();
+			if (sealed.isEmpty()) {
+				lost += unread;
+				break;
+			}
+
+			Segment oldest = sealed.peekFirst();
+			if (reader == null) {
+				reader = Files.newBufferedReader(oldest.path, StandardCharsets.UTF_8);
+			}
+
+			String line;
+			while (pending.size() < max && (line = reader.readLine()) != null) {
+				pending.add(line);
+				oldest.entries--;
+				unread--;
+			}
+
+			// finished the segment. It is deleted on commit
+			if (pending.size() < max || oldest.entries <= 0) {
+				lost += Math.max(oldest.entries, 0); // lost lines, if any
+				unread -= Math.max(oldest.entries, 0);
+				reader.close();
+				reader = null;
+				finished.add(sealed.pollFirst());
+			}
+		}
+
+		return new ArrayList<>(pending);
+	}
+
+	/**
+	 * Remove the entries of the last peek
+	 */
+	public void commit() throws IOException
+	{
+		size -= pending.size() + lost;
+		pending.clear();
+		lost = 0;
+
+		for (Segment s : finished) Files.deleteIfExists(s.path);
+		finished.clear();
+	}
+
+	/**
+	 * Number of entries not yet removed
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * Delete all entries
+	 */
+	public void clear() throws IOException
+	{
+		close();
+		for (Segment s : sealed) Files.deleteIfExists(s.path);
+		sealed.clear();
+		pending.clear();
+		lost = 0;
+		for (Segment s : finished) Files.deleteIfExists(s.path);
+		finished.clear();
+		size = 0;
+	}
+
+	public void close() throws IOException
+	{
+		if (reader != null) {
+			reader.close();
+			reader = null;
+		}
+		sealCurrent();
+	}
+
+	private void openNewSegment() throws IOException
+	{
+		current = new Segment(dir.resolve(String.format("%s-%012d%s", prefix, nextSeq++, SUFFIX)));
+		currentOut = new FileOutputStream(current.path.toFile(), true);
+		writer = new BufferedWriter(new OutputStreamWriter(currentOut, StandardCharsets.UTF_8));
+	}
+
+	private void sealCurrent() throws IOException
+	{
+		if (current == null) return;
+
+		writer.close();
+		writer = null;
+		currentOut = null;
+		sealed.addLast(current);
+		current = null;
+	}
+
+	// Load segments left from a previous run, ordered by sequence
+	private void recoverSegments() throws IOException
+	{
+		TreeMap<Long, Path> found = new TreeMap<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix + "-*" + SUFFIX)) {
+			for (Path p : stream) {
+				String name = p.getFileName().toString();
+				String seq = name.substring(prefix.length() + 1, name.length() - SUFFIX.length());
+				try {
+					found.put(Long.parseLong(seq), p);
+				} catch (NumberFormatException e) {
+					logger.fine("SegmentLog: ignoring " + p);
+				}
+			}
+		}
+
+		for (Path p : found.values()) {
+			Segment s = new Segment(p);
+			try (Stream<String> lines = Files.lines(p, StandardCharsets.UTF_8)) {
+				s.entries = (int) lines.count();
+			}
+			sealed.addLast(s);
+			size += s.entries;
+		}
+
+		if (!found.isEmpty()) {
+			nextSeq = found.lastKey() + 1;
+			logger.info("SegmentLog: recovered " + size + " entries from " + dir);
+		}
+	}
+
+	private static class Segment
+	{
+		final Path path;
+		int entries = 0;
+
+		Segment(Path path)
+		{
+			this.path = path;
+		}
+	}
+}
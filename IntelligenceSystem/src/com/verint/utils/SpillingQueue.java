@@ -0,0 +1,312 @@
+package com.verint.utils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An unbounded FIFO blocking queue, that keeps only a window of entries in
+ * memory. Entries over the window are spilled to an append-only segment log
+ * on disk, and are loaded back transparently as consumers drain the queue.
+ *
+ * Producers never block, while heap usage stays flat no matter how many
+ * entries are queued. An entry is rejected only if it should be spilled
+ * and the disk fails - keeping it in memory would put it before older,
+ * spilled entries.
+ *
+ * @param <E> the entry type
+ */
+public class SpillingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E>
+{
+	/**
+	 * Converts entries to a single line of text and back
+	 */
+	public interface Codec<E>
+	{
+		String encode(E e);
+		E decode(String line);
+	}
+
+	private static final int ENTRIES_PER_SEGMENT = 10000;
+
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+
+	// the in memory window - always the oldest entries
+	private final ArrayDeque<E> memory;
+	private final int memoryCapacity;
+
+	// the overflow, newer than everything in memory
+	private final SegmentLog disk;
+	private final Codec<E> codec;
+
+	/**
+	 * Create a new queue. Entries left on the spill dir from a previous run
+	 * are dropped.
+	 *
+	 * @param memoryCapacity number of entries to keep in memory
+	 * @param spillDir dir for the overflow segments
+	 * @param name used as the segment files prefix
+	 * @param codec entries codec
+	 */
+	public SpillingQueue(int memoryCapacity, Path spillDir, String name, Codec<E> codec)
+			throws IOException
+	{
+		this.memoryCapacity = memoryCapacity;
+		this.memory = new ArrayDeque<>(memoryCapacity);
+		this.codec = codec;
+		this.disk = new SegmentLog(spillDir, name, ENTRIES_PER_SEGMENT);
+		this.disk.clear();
+	}
+
+	//
+	// Producers
+	//
+	@Override
+	public boolean offer(E e)
+	{
+		if (e == null) throw new NullPointerException();
+
+		lock.lock();
+		try {
+			// once something was spilled, newer entries must go after it
+			if (disk.isEmpty() && memory.size() < memoryCapacity) {
+				memory.addLast(e);
+			} else if (!spill(e)) {
+				return false;
+			}
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Throws IllegalStateException if the entry cannot be spilled
+	@Override
+	public void put(E e)
+	{
+		add(e);
+	}
+
+	// A batch is added under a single lock. Throws IllegalStateException if
+	// an entry cannot be spilled - the entries before it are added.
+	@Override
+	public boolean addAll(Collection<? extends E> c)
+	{
+		if (c.isEmpty()) return false;
+
+		lock.lock();
+		try {
+			for (E e : c) {
+				if (e == null) throw new NullPointerException();
+				if (disk.isEmpty() && memory.size() < memoryCapacity) {
+					memory.addLast(e);
+				} else if (!spill(e)) {
+					throw new IllegalStateException("cannot spill entry");
+				}
+			}
+			return true;
+		} finally {
+			notEmpty.signalAll();
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit)
+	{
+		return offer(e);
+	}
+
+	//
+	// Consumers
+	//
+	@Override
+	public E poll()
+	{
+		lock.lock();
+		try {
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E take() throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try {
+			E e;
+			while ((e = dequeue()) == null) notEmpty.await();
+			return e;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			E e;
+			while ((e = dequeue()) == null) {
+				if (nanos <= 0) return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return e;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E peek()
+	{
+		lock.lock();
+		try {
+			refill();
+			return memory.peekFirst();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c)
+	{
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements)
+	{
+		lock.lock();
+		try {
+			int n = 0;
+			E e;
+			while (n < maxElements && (e = dequeue()) != null) {
+				c.add(e);
+				n++;
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//
+	// State
+	//
+	@Override
+	public int size()
+	{
+		lock.lock();
+		try {
+			return (int) Math.min(Integer.MAX_VALUE, memory.size() + disk.size());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Number of entries currently on disk
+	 */
+	public long spilledSize()
+	{
+		lock.lock();
+		try {
+			return disk.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity()
+	{
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Iterates over a snapshot of the in-memory entries only
+	 */
+	@Override
+	public Iterator<E> iterator()
+	{
+		lock.lock();
+		try {
+			return new ArrayList<>(memory).iterator();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void close()
+	{
+		lock.lock();
+		try {
+			disk.clear();
+		} catch (IOException e) {
+			logger.fine("SpillingQueue: problem closing spill log " + e.getMessage());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//
+	// Helpers - called under lock
+	//
+	private E dequeue()
+	{
+		refill();
+		return memory.pollFirst();
+	}
+
+	// Load entries from disk, when memory ran out
+	private void refill()
+	{
+		if (!memory.isEmpty() || disk.isEmpty()) return;
+
+		try {
+			List<String> lines = disk.read(memoryCapacity);
+			for (String line : lines) {
+				memory.addLast(codec.decode(line));
+			}
+		} catch (IOException e) {
+			// Nothing else to do - the entries are lost. Make some noise.
+			logger.log(Level.SEVERE, "SpillingQueue: cannot read spilled entries", e);
+		}
+	}
+
+	// False if the entry could not be written. It is not kept in memory, as
+	// it would go before the older entries on disk.
+	private boolean spill(E e)
+	{
+		try {
+			disk.append(codec.encode(e));
+			// readers seal the segment before reading it, so no need to
+			// flush on every entry
+			return true;
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, "SpillingQueue: cannot spill entry, rejecting it", ex);
+			return false;
+		}
+	}
+}
@@ -9,7 +9,6 @@ import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -73,7 +72,7 @@ public class SystemCommandCaller {
 			process = builder.start();
 			
 			// Read the output and return it
-			ExecutorService s = Executors.newSingleThreadExecutor();
+			ExecutorService s = ThreadPools.newTaskExecutor("command-output");
 			result = s.submit(() -> {
 				return new BufferedReader(
 							new InputStreamReader(
@@ -0,0 +1,141 @@
+package com.verint.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the executors for the system's work, according to the configured
+ * execution mode. In VIRTUAL mode each task gets a virtual thread, so tasks
+ * blocked on I/O (rmi, http, db, processes) cost no os thread. Bounds are
+ * kept with semaphores instead of pool sizes.
+ *
+ * We build for java 8, so virtual threads are reached by reflection, and
+ * the mode falls back to PLATFORM on older jvms.
+ */
+public final class ThreadPools
+{
+	private static Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private static final ExecutionMode mode = resolveMode();
+
+	private ThreadPools()
+	{
+	}
+
+	public static ExecutionMode getMode()
+	{
+		return mode;
+	}
+
+	/**
+	 * An unbounded executor for short or waiting tasks. A cached pool, or a
+	 * virtual thread per task.
+	 *
+	 * @param name used for naming the threads
+	 */
+	public static ExecutorService newTaskExecutor(String name)
+	{
+		if (mode == ExecutionMode.VIRTUAL) {
+			ExecutorService virtual = newVirtualExecutor(name);
+			if (virtual != null) return virtual;
+		}
+		return Executors.newCachedThreadPool(namedFactory(name));
+	}
+
+	/**
+	 * An executor running at most 'threads' tasks at once, with at most
+	 * 'queueSize' waiting. Tasks over that are rejected.
+	 *
+	 * @param name used for naming the threads
+	 * @param threads max running tasks
+	 * @param queueSize max waiting tasks, or Integer.MAX_VALUE for unbounded
+	 */
+	public static ExecutorService newBoundedExecutor(String name, int threads, int queueSize)
+	{
+		if (mode == ExecutionMode.VIRTUAL) {
+			ExecutorService virtual = newVirtualExecutor(name);
+			if (virtual != null) return new BoundedExecutor(virtual, threads, queueSize);
+		}
+
+		BlockingQueue<Runnable> queue = (queueSize == Integer.MAX_VALUE) ? 
+				new LinkedBlockingQueue<>() : new ArrayBlockingQueue<>(queueSize);
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue,
+				namedFactory(name));
+	}
+
+	// Running tasks, of an executor created here
+	public static int getActiveCount(ExecutorService executor)
+	{
+		if (executor instanceof ThreadPoolExecutor) 
+			return ((ThreadPoolExecutor)executor).getActiveCount();
+		if (executor instanceof BoundedExecutor) 
+			return ((BoundedExecutor)executor).getActiveCount();
+		return 0;
+	}
+
+	// Waiting tasks, of an executor created here
+	public static int getQueuedCount(ExecutorService executor)
+	{
+		if (executor instanceof ThreadPoolExecutor) 
+			return ((ThreadPoolExecutor)executor).getQueue().size();
+		if (executor instanceof BoundedExecutor) 
+			return ((BoundedExecutor)executor).getQueuedCount();
+		return 0;
+	}
+
+	private static ThreadFactory namedFactory(String name)
+	{
+		AtomicInteger count = new AtomicInteger();
+		return r -> new Thread(r, name + "-" + count.incrementAndGet());
+	}
+
+	// Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory())
+	private static ExecutorService newVirtualExecutor(String name)
+	{
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class)
+					.invoke(builder, name + "-", 1L);
+			ThreadFactory factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+
+			Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService)perTask.invoke(null, factory);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			logger.log(Level.WARNING, "ThreadPools: cannot create virtual threads", e);
+			return null;
+		}
+	}
+
+	private static ExecutionMode resolveMode()
+	{
+		ExecutionMode configured = Config.getExecutionMode();
+		if (configured == ExecutionMode.VIRTUAL && !virtualThreadsSupported()) {
+			logger.warning("ThreadPools: virtual threads need java 21, using platform threads");
+			return ExecutionMode.PLATFORM;
+		}
+
+		logger.info("ThreadPools: execution mode " + configured);
+		return configured;
+	}
+
+	private static boolean virtualThreadsSupported()
+	{
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+}
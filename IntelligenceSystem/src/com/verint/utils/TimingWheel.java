@@ -0,0 +1,204 @@
+package com.verint.utils;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel, for many coarse deadlines (thousands of samples,
+ * minutes long). Scheduling and cancelling are O(1) and lock free, and a
+ * single thread expires the deadlines, once per tick.
+ *
+ * Tasks run on the wheel thread, so they should be short - hand real work
+ * to an executor.
+ */
+public class TimingWheel
+{
+	private Logger logger = ErrorLogger.getInstance().getLogger();
+
+	private final long tickNanos;
+	private final Queue<Timeout>[] buckets;
+	private final int mask;
+
+	// new timeouts, moved to the buckets by the wheel thread
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final Thread worker;
+	private final long startTime;
+	private volatile boolean stopFlag = false;
+	private long tick = 0;
+
+	/**
+	 * @param name the wheel thread name
+	 * @param tickDuration the resolution of the wheel
+	 * @param unit tick duration unit
+	 * @param wheelSize number of buckets, rounded up to a power of 2
+	 */
+	@SuppressWarnings("unchecked")
+	public TimingWheel(String name, long tickDuration, TimeUnit unit, int wheelSize)
+	{
+		int size = Integer.highestOneBit(Math.max(wheelSize, 1) - 1) << 1;
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.buckets = (Queue<Timeout>[])new Queue<?>[Math.max(size, 1)];
+		this.mask = buckets.length - 1;
+		for (int i = 0; i < buckets.length; i++) buckets[i] = new ArrayDeque<>();
+
+		this.startTime = System.nanoTime();
+		this.worker = new Thread(() -> run(), name);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Run the task after the delay (rounded up to the next tick)
+	 *
+	 * @return a handle for cancelling it
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+	{
+		long deadline = System.nanoTime() - startTime + unit.toNanos(delay);
+		Timeout timeout = new Timeout(task, deadline);
+		pending.incrementAndGet();
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Number of scheduled timeouts, not yet expired or cancelled
+	 */
+	public int getPendingCount()
+	{
+		return pending.get();
+	}
+
+	public void stop()
+	{
+		stopFlag = true;
+		worker.interrupt();
+	}
+
+	private void run()
+	{
+		while (!stopFlag) {
+			if (!waitForNextTick()) break;
+
+			transferAdded();
+			expire(buckets[(int)(tick & mask)]);
+			tick++;
+		}
+	}
+
+	// sleep until the current tick ends. false if stopped
+	private boolean waitForNextTick()
+	{
+		long tickEnd = tickNanos * (tick + 1);
+		while (true) {
+			long sleepNanos = tickEnd - (System.nanoTime() - startTime);
+			if (sleepNanos <= 0) return true;
+
+			try {
+				TimeUnit.NANOSECONDS.sleep(sleepNanos);
+			} catch (InterruptedException e) {
+				if (stopFlag) return false;
+			}
+		}
+	}
+
+	// Place new timeouts in their bucket
+	private void transferAdded()
+	{
+		Timeout t;
+		while ((t = added.poll()) != null) {
+			if (t.state.get() == Timeout.CANCELLED) continue;
+
+			// a deadline already passed goes to the current tick
+			long ticks = Math.max(divideRoundUp(t.deadline, tickNanos) - 1, tick);
+			t.rounds = (ticks - tick) / buckets.length;
+			buckets[(int)(ticks & mask)].add(t);
+		}
+	}
+
+	private void expire(Queue<Timeout> bucket)
+	{
+		Iterator<Timeout> it = bucket.iterator();
+		while (it.hasNext()) {
+			Timeout t = it.next();
+			if (t.state.get() == Timeout.CANCELLED) {
+				it.remove();
+			} else if (t.rounds <= 0) {
+				it.remove();
+				t.expire();
+			} else {
+				t.rounds--;
+			}
+		}
+	}
+
+	private static long divideRoundUp(long a, long b)
+	{
+		return (a + b - 1) / b;
+	}
+
+	/**
+	 * A scheduled task
+	 */
+	public class Timeout
+	{
+		private static final int WAITING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+		private final long deadline;
+		private volatile Runnable task;
+
+		// full turns of the wheel left, owned by the wheel thread
+		private long rounds;
+
+		private Timeout(Runnable task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancel the task, if it did not run yet
+		 *
+		 * @return true if it was cancelled
+		 */
+		public boolean cancel()
+		{
+			if (!state.compareAndSet(WAITING, CANCELLED)) return false;
+
+			// let the task go, don't wait for the wheel to drop it
+			task = null;
+			pending.decrementAndGet();
+			return true;
+		}
+
+		public boolean isExpired()
+		{
+			return state.get() == EXPIRED;
+		}
+
+		private void expire()
+		{
+			if (!state.compareAndSet(WAITING, EXPIRED)) return;
+
+			pending.decrementAndGet();
+			Runnable r = task;
+			task = null;
+			try {
+				r.run();
+			} catch (Exception e) {
+				logger.log(Level.SEVERE, "TimingWheel: timeout task failed", e);
+			}
+		}
+	}
+}
@@ -3,8 +3,6 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -12,8 +10,6 @@ import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.xml.bind.DatatypeConverter;
-
 import org.apache.tika.Tika;
 import org.apache.tika.mime.MediaType;
 
@@ -56,37 +52,19 @@ public class Utils {
 	// Generate a SHA256 hash of the given file
 	public static String generateSHA256Hash(Path file) throws IOException
 	{
-		try{
-			return generateFileHash(file, "SHA-256");
-		}
-		catch (NoSuchAlgorithmException e){
-			// this 'cannot' happen.
-			logger.log(Level.WARNING, "problem with hash generation", e); 
-			return "";
-		}
+		return FileHasher.hash(file).getSha256();
 	}
 	
 	// Generate a MD5 hash of the given file
 	public static String generateMD5Hash(Path file) throws IOException
 	{
-		try{
-			return generateFileHash(file, "MD5");
-		}
-		catch (NoSuchAlgorithmException e){
-			// this 'cannot' happen.
-			logger.log(Level.WARNING, "problem with hash generation", e); 
-			return "";
-		}
+		return FileHasher.hash(file).getMd5();
 	}
 	
-	// Generate a hash of the given file
-	private static String generateFileHash(Path file, String algorithm) throws IOException, NoSuchAlgorithmException
+	// Generate all the hashes we use on the given file, reading it only once
+	public static FileHashes generateHashes(Path file) throws IOException
 	{
-		MessageDigest md = MessageDigest.getInstance(algorithm);
-		md.update(Files.readAllBytes(file));
-		byte[] digest = md.digest();
-		
-		return DatatypeConverter.printHexBinary(digest).toUpperCase();
+		return FileHasher.hash(file);
 	}
 	
 	// just to avoid the exception
@@ -13,7 +13,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -30,6 +29,8 @@ import com.mashape.unirest.http.exceptions.UnirestException;
 import com.mashape.unirest.request.HttpRequest;
 import com.verint.utils.Config;
 import com.verint.utils.ErrorLogger;
+import com.verint.utils.ResourceLimits;
+import com.verint.utils.ThreadPools;
 import com.verint.utils.Utils;
 
 /**
@@ -46,6 +47,9 @@ public class VirusTotalDownloader
 	private static final String VT_DOWNLOAD_URL = "https://www.virustotal.com/intelligence/" + "download/";
 	private static final int CONCUR_DOWNLOADS = 5;
 	
+	// bounds concurrent requests to virus total
+	private static final String HTTP_RESOURCE = "vt.http";
+	
 	// The download folder. Note - do not use the same downloader object for 2 
 	// different concurrent requests, it may cause dir problems. see (main)
 	private Path downloadFolder;
@@ -181,9 +185,10 @@ public class VirusTotalDownloader
 		}
 
 		// try 3 times
+		final URL source = url;
 		for (int attempts = 0; attempts < 3; attempts++) {
-			try (InputStream in = url.openStream()) {
-				Files.copy(in, destFile, StandardCopyOption.REPLACE_EXISTING);
+			try {
+				ResourceLimits.getInstance().with(HTTP_RESOURCE, () -> download(source, destFile));
 				return true;
 			} catch (IOException e) {
 				logger.info("Attempt " + attempts + " problem downloading file: " +
@@ -193,6 +198,13 @@ public class VirusTotalDownloader
 		return false;
 	}
 	
+	private static long download(URL url, Path destFile) throws IOException
+	{
+		try (InputStream in = url.openStream()) {
+			return Files.copy(in, destFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
 	// Poll the queue for hashes, and download the file.
 	private void pollQueueAndDownload()
 	{
@@ -331,17 +343,13 @@ public class VirusTotalDownloader
 	}
 	
 	/**
-	 * Returns a fixed executor service, with daemon threads
+	 * Returns a fixed executor service (or virtual threads, bounded the same)
 	 * 
 	 * @return
 	 */
 	private ExecutorService createDaemonThreadPool(int threadNum)
 	{
-		return Executors.newFixedThreadPool(threadNum, (r) -> {
-			Thread t = Executors.defaultThreadFactory().newThread(r);
-			//t.setDaemon(true);
-			return t;
-		});
+		return ThreadPools.newBoundedExecutor("vt-download", threadNum, Integer.MAX_VALUE);
 	}
 	
 	// test